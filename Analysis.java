@@ -0,0 +1,455 @@
+/* Analysis.java
+ * Structural analysis of a whole logic circuit
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/** Checks the structure of a circuit, in parallel.
+ *  The circuit is flattened into arrays of gate numbers, and the checks
+ *  run as fork-join tasks over slices of those arrays.  Diagnostics are
+ *  gathered in a lock-free queue and sorted by gate number before they
+ *  are reported, so the output does not depend on thread timing.  Only
+ *  zero-delay cycles, which would stall simulation, are reported as
+ *  errors; the other diagnostics are notes, which don't stop it.
+ *  The circuit is taken as it is when the analysis is constructed, so
+ *  the diagnostics are about the circuit as written even if it is laid
+ *  out or optimized before they are reported: the array of gates, the
+ *  graph and the gates' probes are copied, and of the gates themselves,
+ *  only the names, kinds and delays are used later, which never change.
+ *  @see Errors
+ *  @see Logic
+ */
+class Analysis {
+
+    // gates with more fan-out than this many deviations above the mean
+    private static final double FANOUT_DEVIATIONS = 6.0;
+    // but never less than this
+    private static final int FANOUT_MINIMUM = 8;
+
+    // gates handled per task by per-gate checks
+    private static final int SLICE = 4096;
+
+    private final Gate[] gates;        // all gates, by number
+    private final boolean explicit;    // were there probe commands?
+    private final boolean[] probed;    // of each gate, when constructed
+    private final boolean[] starts;    // does the gate start simulation?
+
+    // the circuit as a graph, in compressed sparse row form
+    // the edges out of gate g are succ[succStart[g]..succStart[g+1]-1]
+    private final int[] succStart;
+    private final int[] succ;
+    private final boolean[] succZero;  // is there no delay along this edge?
+    private final int[] predStart;
+    private final int[] pred;
+    private final boolean[] predZero;
+
+    // a diagnostic, to be sorted by gate number and then by check
+    private static class Diagnostic implements Comparable <Diagnostic> {
+	final int gate;
+	final int check;
+	final String message;
+
+	Diagnostic( int gate, int check, String message ) {
+	    this.gate = gate;
+	    this.check = check;
+	    this.message = message;
+	}
+
+	public int compareTo( Diagnostic d ) {
+	    if (gate != d.gate) return Integer.compare( gate, d.gate );
+	    return Integer.compare( check, d.check );
+	}
+    }
+
+    // the checks, in the order their diagnostics are reported for one gate
+    private static final int DANGLING = 0;
+    private static final int UNREACHABLE = 1;
+    private static final int FANOUT = 2;
+    private static final int LOOP = 3;
+    private static final int ZERO_DELAY = 4;
+
+    // the subproblem each gate belongs to while looking for loops
+    // subproblems are disjoint, so each task only recolors its own gates
+    private final int[] colors;
+    // the edges in and out of each gate within its subproblem, see trim
+    private final int[] inDegree;
+    private final int[] outDegree;
+    private final AtomicInteger lastColor = new AtomicInteger( 0 );
+    private static final int TRIMMED = -1;
+
+    private final ConcurrentLinkedQueue <Diagnostic> found
+	= new ConcurrentLinkedQueue <Diagnostic> ();
+
+    /** flatten the numbered circuit of this thread for analysis
+     *  @param gates the gates of the circuit, by number
+     *  @param explicit true if the probes were given explicitly
+     */
+    Analysis( Gate[] gates, boolean explicit ) {
+	this.gates = gates.clone(); // the optimizer replaces some in place
+	this.explicit = explicit;
+	int n = gates.length;
+	colors = new int[n];
+	probed = new boolean[n];
+	starts = new boolean[n];
+	for (int g = 0; g < n; g++) {
+	    probed[g] = gates[g].probed;
+	    starts[g] = gates[g].startsSimulation();
+	}
+	inDegree = new int[n];
+	outDegree = new int[n];
+
+	// count the edges in and out of each gate
+	succStart = new int[n + 1];
+	predStart = new int[n + 1];
+	for (Wire w: Logic.wires()) {
+	    succStart[w.source().number + 1]++;
+	    predStart[w.destination().number + 1]++;
+	}
+	for (int i = 0; i < n; i++) {
+	    succStart[i + 1] += succStart[i];
+	    predStart[i + 1] += predStart[i];
+	}
+
+	// fill in the edges
+	succ = new int[succStart[n]];
+	succZero = new boolean[succStart[n]];
+	pred = new int[predStart[n]];
+	predZero = new boolean[predStart[n]];
+	int[] sNext = Arrays.copyOf( succStart, n );
+	int[] pNext = Arrays.copyOf( predStart, n );
+	for (Wire w: Logic.wires()) {
+	    int s = w.source().number;
+	    int d = w.destination().number;
+	    boolean zero = (w.delay() == 0.0f) && (gates[d].delay == 0.0f);
+	    succ[sNext[s]] = d;
+	    succZero[sNext[s]] = zero;
+	    sNext[s]++;
+	    pred[pNext[d]] = s;
+	    predZero[pNext[d]] = zero;
+	    pNext[d]++;
+	}
+    }
+
+    /** run every check and report what was found
+     */
+    void lint() {
+	ForkJoinPool pool = ForkJoinPool.commonPool();
+	pool.invoke( new PerGate( 0, gates.length, fanoutLimit() ) );
+	unreachable();
+	pool.invoke( new Components( all(), false ) );
+	pool.invoke( new Components( all(), true ) );
+	report();
+    }
+
+    /** check only for cycles without delay, which would stall simulation
+     */
+    void zeroDelayCycles() {
+	ForkJoinPool.commonPool().invoke( new Components( all(), true ) );
+	report();
+    }
+
+    // report all diagnostics, in order
+    private void report() {
+	ArrayList <Diagnostic> sorted = new ArrayList <Diagnostic> ( found );
+	Collections.sort( sorted );
+	for (Diagnostic d: sorted) {
+	    if (d.check == ZERO_DELAY) {
+		Errors.warn( d.message );
+	    } else {
+		Errors.note( d.message );
+	    }
+	}
+	found.clear();
+    }
+
+    // a color no subproblem has used
+    private int newColor() {
+	return lastColor.incrementAndGet();
+    }
+
+    // the numbers of all gates
+    private int[] all() {
+	return IntStream.range( 0, gates.length ).toArray();
+    }
+
+    // the fan-out above which a gate is an outlier
+    private int fanoutLimit() {
+	int n = gates.length;
+	if (n == 0) return FANOUT_MINIMUM;
+	double mean = (double)succ.length / n;
+	double square = IntStream.range( 0, n ).parallel().mapToDouble(
+	    (int g)->{
+		double d = (succStart[g + 1] - succStart[g]) - mean;
+		return d * d;
+	    }
+	).sum();
+	double limit = mean + FANOUT_DEVIATIONS * Math.sqrt( square / n );
+	return Math.max( FANOUT_MINIMUM, (int)limit );
+    }
+
+    /** the checks that look at one gate at a time, over a slice of gates
+     */
+    private class PerGate extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private final int from;
+	private final int to;
+	private final int limit;
+
+	PerGate( int from, int to, int limit ) {
+	    this.from = from;
+	    this.to = to;
+	    this.limit = limit;
+	}
+
+	protected void compute() {
+	    if (to - from > SLICE) {
+		int middle = (from + to) >>> 1;
+		invokeAll(
+		    new PerGate( from, middle, limit ),
+		    new PerGate( middle, to, limit )
+		);
+		return;
+	    }
+	    for (int g = from; g < to; g++) {
+		int fanout = succStart[g + 1] - succStart[g];
+		if ((fanout == 0) && !(explicit && probed[g])) {
+		    found.add( new Diagnostic( g, DANGLING,
+			"Dangling output: " + gates[g].toString()
+		    ) );
+		}
+		if (fanout > limit) {
+		    found.add( new Diagnostic( g, FANOUT,
+			"Fan-out of " + fanout + ": " + gates[g].toString()
+		    ) );
+		}
+	    }
+	}
+    }
+
+    /** find gates that no change can ever reach
+     *  A level-synchronous breadth-first search, in parallel over each level,
+     *  from the gates that start the simulation.
+     */
+    private void unreachable() {
+	int n = gates.length;
+	AtomicIntegerArray seen = new AtomicIntegerArray( n );
+	int[] frontier = IntStream.range( 0, n ).filter(
+	    (int g)->starts[g]
+	).toArray();
+	for (int g: frontier) seen.set( g, 1 );
+
+	while (frontier.length > 0) {
+	    frontier = IntStream.of( frontier ).parallel().flatMap(
+		(int g)->IntStream.range( succStart[g], succStart[g + 1] )
+	    ).map(
+		(int e)->succ[e]
+	    ).filter(
+		(int g)->seen.compareAndSet( g, 0, 1 )
+	    ).toArray();
+	}
+
+	IntStream.range( 0, n ).parallel().filter(
+	    (int g)->seen.get( g ) == 0
+	).forEach(
+	    (int g)->found.add( new Diagnostic( g, UNREACHABLE,
+		"Unreachable gate: " + gates[g].toString()
+	    ) )
+	);
+    }
+
+    /** find the strongly connected components among some gates
+     *  This is the forward-backward algorithm: the gates that a pivot
+     *  reaches and that reach the pivot form its component, and the gates
+     *  reached only one way are two independent subproblems that are
+     *  solved in parallel.  The gates reached neither way are searched
+     *  again, from another pivot, in a loop within the same task.  Gates
+     *  with no edges in or out within a subproblem are trimmed off first,
+     *  since they can't be in a loop.  Tasks complete through their
+     *  pending counts instead of waiting for their subtasks, so long chains
+     *  of subproblems don't need a deep stack.
+     *  Components of more than one gate, or of a gate wired to itself,
+     *  are reported as loops.
+     */
+    private class Components extends CountedCompleter <Void> {
+	private static final long serialVersionUID = 1L;
+
+	private final int[] members;    // the gates of this subproblem
+	private final int color;        // the color of those gates
+	private final boolean zero;     // follow only edges with no delay?
+
+	Components( int[] members, boolean zero ) {
+	    this( null, members, newColor(), zero );
+	    for (int g: members) colors[g] = color;
+	}
+
+	private Components(
+	    Components parent, int[] members, int color, boolean zero
+	) {
+	    super( parent );
+	    this.members = members;
+	    this.color = color;
+	    this.zero = zero;
+	}
+
+	public void compute() {
+	    trim();
+	    int[] reached = new int[members.length];  // by the forward search
+	    int[] reaching = new int[members.length]; // by the backward search
+	    for (int pivot: members) {
+		if (colors[pivot] != color) continue;
+
+		// color what the pivot reaches, then what reaches the pivot
+		int forward = newColor();
+		int backward = newColor();
+		int both = newColor();
+		int f = search(
+		    pivot, succStart, succ, succZero,
+		    color, forward, forward, reached
+		);
+		int b = search(
+		    pivot, predStart, pred, predZero,
+		    forward, both, backward, reaching
+		);
+
+		int[] component = select( reaching, b, both );
+		if ((component.length > 1) || selfLoop( pivot )) {
+		    loop( component );
+		}
+		split( select( reached, f, forward ), forward );
+		split( select( reaching, b, backward ), backward );
+	    }
+	    tryComplete();
+	}
+
+	// solve the subproblem of some gates of color c in another task
+	private void split( int[] some, int c ) {
+	    if (some.length == 0) return;
+	    addToPendingCount( 1 );
+	    new Components( this, some, c, zero ).fork();
+	}
+
+	// the first n of some gates that are of color c
+	private int[] select( int[] some, int n, int c ) {
+	    int count = 0;
+	    for (int i = 0; i < n; i++) if (colors[some[i]] == c) count++;
+	    int[] a = new int[count];
+	    count = 0;
+	    for (int i = 0; i < n; i++) if (colors[some[i]] == c) {
+		a[count++] = some[i];
+	    }
+	    return a;
+	}
+
+	// does edge e lead to a gate of color c?
+	private boolean follows( int[] edge, boolean[] edgeZero, int e, int c ) {
+	    return (colors[edge[e]] == c) && (edgeZero[e] || !zero);
+	}
+
+	// remove members with no edges in or out within this subproblem
+	private void trim() {
+	    // gates trimmed, those before head with their edges taken away
+	    int[] dead = new int[members.length];
+	    int head = 0;
+	    int count = 0;
+	    for (int g: members) {
+		inDegree[g] = 0;
+		outDegree[g] = 0;
+		for (int e = predStart[g]; e < predStart[g + 1]; e++) {
+		    if (follows( pred, predZero, e, color )) inDegree[g]++;
+		}
+		for (int e = succStart[g]; e < succStart[g + 1]; e++) {
+		    if (follows( succ, succZero, e, color )) outDegree[g]++;
+		}
+	    }
+	    for (int g: members) {
+		if ((inDegree[g] == 0) || (outDegree[g] == 0)) dead[count++] = g;
+	    }
+	    for (int i = 0; i < count; i++) colors[dead[i]] = TRIMMED;
+	    while (head < count) {
+		int g = dead[head++];
+		for (int e = succStart[g]; e < succStart[g + 1]; e++) {
+		    if (follows( succ, succZero, e, color )
+		    &&  (--inDegree[succ[e]] == 0)) {
+			colors[succ[e]] = TRIMMED;
+			dead[count++] = succ[e];
+		    }
+		}
+		for (int e = predStart[g]; e < predStart[g + 1]; e++) {
+		    if (follows( pred, predZero, e, color )
+		    &&  (--outDegree[pred[e]] == 0)) {
+			colors[pred[e]] = TRIMMED;
+			dead[count++] = pred[e];
+		    }
+		}
+	    }
+	}
+
+	// search from g along edges to gates of color from or also,
+	// recoloring those of color from to to, and those of color also
+	// to toAlso; queue gets the gates recolored, and their count is
+	// returned
+	private int search(
+	    int g, int[] start, int[] edge, boolean[] edgeZero,
+	    int from, int to, int toAlso, int[] queue
+	) {
+	    colors[g] = to;
+	    queue[0] = g;
+	    int head = 0;
+	    int tail = 1;
+	    while (head < tail) {
+		int u = queue[head++];
+		for (int e = start[u]; e < start[u + 1]; e++) {
+		    if (zero && !edgeZero[e]) continue;
+		    int v = edge[e];
+		    if (colors[v] == from) {
+			colors[v] = to;
+			queue[tail++] = v;
+		    } else if ((colors[v] == color) && (toAlso != to)) {
+			colors[v] = toAlso;
+			queue[tail++] = v;
+		    }
+		}
+	    }
+	    return tail;
+	}
+
+	// is gate g wired to itself along edges of the kind we follow?
+	private boolean selfLoop( int g ) {
+	    for (int e = succStart[g]; e < succStart[g + 1]; e++) {
+		if ((succ[e] == g) && (succZero[e] || !zero)) return true;
+	    }
+	    return false;
+	}
+
+	// report one loop, under the lowest numbered gate in it
+	private void loop( int[] component ) {
+	    Arrays.sort( component );
+	    StringBuilder names = new StringBuilder();
+	    for (int g: component) names.append( " " ).append( gates[g].name );
+	    if (zero) {
+		found.add( new Diagnostic( component[0], ZERO_DELAY,
+		    "Zero-delay cycle:" + names
+		) );
+	    } else {
+		found.add( new Diagnostic( component[0], LOOP,
+		    "Combinational loop:" + names
+		) );
+	    }
+	}
+    }
+
+} // class Analysis
@@ -0,0 +1,480 @@
+/* Distributed.java
+ * Simulation of one logic circuit by several cooperating processes
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/** Splits the simulation of a circuit among worker processes.
+ *  The coordinator divides the gates into one partition per worker and
+ *  starts the workers on this machine, each a Java process running Logic.
+ *  Every worker reads the whole circuit, so that every process gives every
+ *  action the same registration number, but each simulates only the gates
+ *  of its own partition.  Events on wires that cross from one partition to
+ *  another are sent through the coordinator, in binary, over local sockets.
+ *
+ *  Time advances in windows.  Each window starts at the earliest pending
+ *  event in any worker and is as long as the shortest delay of any wire
+ *  between partitions, so nothing a worker does in a window can affect
+ *  another worker in the same window.  Wires without delay never cross
+ *  between partitions.  Once simulated time is so large that adding that
+ *  delay to it doesn't change it, each window is just one time, and
+ *  events sent at that time are triggered in the next window, after the
+ *  others at the same time; only then can the trace differ from that of
+ *  a single process.  Within each worker, events are kept off-heap,
+ *  where those at the same time are triggered in registration order, so
+ *  every worker triggers its events in the same order as a single process
+ *  would.  Each trace line is sent with the key of the event that printed
+ *  it, and the coordinator prints them in key order; the merged trace is
+ *  the trace of a single process run with -exact and -offheap.
+ *  Random variation in delays would differ, so -exact is required.
+ *  @see Logic
+ *  @see EventHeap
+ */
+abstract class Distributed {
+    // commands from the coordinator to a worker
+    private static final byte RUN = 1;
+    private static final byte STOP = 0;
+
+    // the worker of this process, if this is a worker
+    private static Worker worker = null;
+
+    /** claim the gates of this process's partition, before launching them
+     *  @param gates the gates of the circuit, by number
+     */
+    abstract void claim( Gate[] gates );
+
+    /** run the simulation, after the circuit has been checked
+     *  @param gates the gates of the circuit, by number
+     *  @param probes the probes of the circuit
+     *  @param until the time limit of the simulation
+     */
+    abstract void run( Gate[] gates, Probes probes, float until );
+
+    /** send a wire's event to the process that simulates its destination
+     *  @param destination the gate the wire goes to, not in this process
+     *  @param time the time of the event
+     *  @param action the action the event triggers
+     *  @param v the value passed to the action
+     */
+    static void send( Gate destination, float time, int action, boolean v ) {
+	worker.forward( destination, time, action, v );
+    }
+
+    // give up on a failed connection
+    private static void lost( IOException e ) {
+	Errors.fatal( "Lost connection: " + e.getMessage() );
+    }
+
+    /** The process that divides the circuit and merges the results
+     */
+    static class Coordinator extends Distributed {
+	private final int count;          // number of workers
+	private final String[] args;      // the command line, for the workers
+	private int[] part;               // partition of each gate, by number
+	private float lookahead;          // the length of a window
+
+	// the worker that failed, or -1, and what to close when one does
+	private volatile int failed = -1;
+	private final ArrayList <Closeable> open = new ArrayList <Closeable> ();
+
+	/** prepare to coordinate
+	 *  @param count how many workers to start
+	 *  @param args the command line of this process
+	 */
+	Coordinator( int count, String[] args ) {
+	    this.count = count;
+	    this.args = args;
+	}
+
+	void claim( Gate[] gates ) {
+	    // gates joined by wires without delay must be in one partition
+	    int[] root = new int[gates.length];
+	    for (int i = 0; i < root.length; i++) root[i] = i;
+	    for (Wire w: Logic.wires()) {
+		if (w.delay() <= 0.0f) {
+		    int a = find( root, w.source().number );
+		    int b = find( root, w.destination().number );
+		    root[Math.max( a, b )] = Math.min( a, b );
+		}
+	    }
+
+	    // give each worker about the same number of gates, in order
+	    int[] size = new int[gates.length];
+	    for (int i = 0; i < root.length; i++) size[find( root, i )]++;
+	    part = new int[gates.length];
+	    int worker = 0;
+	    int assigned = 0;
+	    for (int i = 0; i < root.length; i++) {
+		int r = find( root, i );
+		if (r == i) { // the first gate of its group
+		    if ((assigned * (long)count >= (worker + 1L) * root.length)
+			&& (worker < count - 1)) worker = worker + 1;
+		    part[i] = worker;
+		    assigned = assigned + size[i];
+		} else {
+		    part[i] = part[r];
+		}
+	    }
+
+	    lookahead = Float.POSITIVE_INFINITY;
+	    for (Wire w: Logic.wires()) {
+		if (part[w.source().number] != part[w.destination().number]) {
+		    lookahead = Math.min( lookahead, w.delay() );
+		}
+	    }
+	}
+
+	// find the root of gate i, halving paths on the way
+	private static int find( int[] root, int i ) {
+	    while (root[i] != i) {
+		root[i] = root[root[i]];
+		i = root[i];
+	    }
+	    return i;
+	}
+
+	void run( Gate[] gates, Probes probes, float until ) {
+	    Process[] processes = new Process[count];
+	    DataInputStream[] in = new DataInputStream[count];
+	    DataOutputStream[] out = new DataOutputStream[count];
+	    try (ServerSocket server = new ServerSocket(
+		    0, count, InetAddress.getLoopbackAddress()
+		)) {
+		opened( server );
+		for (int w = 0; w < count; w++) {
+		    final int worker = w;
+		    final Process p = start( server.getLocalPort() );
+		    processes[w] = p;
+		    Thread watch = new Thread( ()->{
+			try {
+			    if (p.waitFor() != 0) fail( worker );
+			} catch (InterruptedException e) {
+			    // nobody interrupts the watchers
+			}
+		    } );
+		    watch.setDaemon( true );
+		    watch.start();
+		}
+		for (int w = 0; w < count; w++) {
+		    Socket s = server.accept();
+		    opened( s );
+		    s.setTcpNoDelay( true );
+		    in[w] = new DataInputStream(
+			new BufferedInputStream( s.getInputStream() )
+		    );
+		    out[w] = new DataOutputStream(
+			new BufferedOutputStream( s.getOutputStream() )
+		    );
+		    out[w].writeInt( w );
+		    out[w].writeInt( part.length );
+		    for (int p: part) out[w].writeInt( p );
+		    out[w].flush();
+		}
+		coordinate( in, out, until );
+		for (Process p: processes) p.waitFor();
+	    } catch (IOException e) {
+		if (failed >= 0) Errors.fatal( "Worker " + failed + " failed" );
+		lost( e );
+	    } catch (InterruptedException e) {
+		Errors.fatal( "Interrupted while waiting for workers" );
+	    }
+	}
+
+	// remember a connection, to be closed if a worker fails
+	private synchronized void opened( Closeable c ) throws IOException {
+	    if (failed >= 0) c.close();
+	    open.add( c );
+	}
+
+	// give up on the workers when worker w fails, by closing every
+	// connection, so that the coordinator doesn't wait for it forever
+	private synchronized void fail( int w ) {
+	    if (failed >= 0) return;
+	    failed = w;
+	    for (Closeable c: open) try {
+		c.close();
+	    } catch (IOException e) {
+		// it's being given up on anyway
+	    }
+	}
+
+	// start a worker that will connect to port
+	private Process start( int port ) throws IOException {
+	    ArrayList <String> command = new ArrayList <String> ();
+	    command.add(
+		System.getProperty( "java.home" ) + File.separator
+		+ "bin" + File.separator + "java"
+	    );
+	    command.add( "-cp" );
+	    command.add( System.getProperty( "java.class.path" ) );
+	    command.add( "Logic" );
+	    command.add( "-worker" );
+	    command.add( Integer.toString( port ) );
+	    for (int i = 0; i < args.length; i++) {
+		// each worker needs its own events, not a share of one file
+		if ("-workers".equals( args[i] ) || "-map".equals( args[i] )) {
+		    i = i + 1;
+		} else {
+		    command.add( args[i] );
+		}
+	    }
+	    return new ProcessBuilder( command ).inheritIO().start();
+	}
+
+	// run windows until the workers are done, merging their traces
+	private void coordinate(
+	    DataInputStream[] in, DataOutputStream[] out, float until
+	) throws IOException {
+	    // the next event in each worker, and the next sent to each worker
+	    float[] next = new float[count];
+	    float[] arrival = new float[count];
+	    for (int w = 0; w < count; w++) {
+		next[w] = in[w].readFloat();
+		arrival[w] = Float.POSITIVE_INFINITY;
+	    }
+
+	    // events waiting to be sent to each worker
+	    ByteArrayOutputStream[] inbox = new ByteArrayOutputStream[count];
+	    DataOutputStream[] box = new DataOutputStream[count];
+	    int[] boxed = new int[count];
+	    for (int w = 0; w < count; w++) {
+		inbox[w] = new ByteArrayOutputStream();
+		box[w] = new DataOutputStream( inbox[w] );
+	    }
+
+	    ArrayList <Line> trace = new ArrayList <Line> ();
+	    for (;;) {
+		float start = Float.POSITIVE_INFINITY;
+		for (int w = 0; w < count; w++) {
+		    start = Math.min( start, Math.min( next[w], arrival[w] ) );
+		}
+		if ((start == Float.POSITIVE_INFINITY) || (start > until)) break;
+
+		// nothing sent at start or later arrives before start + lookahead,
+		// rounded as the sender rounds it, and the window ends there,
+		// exclusive; but if that rounds to start, the window is start
+		float end = Math.max( start + lookahead, Math.nextUp( start ) );
+
+		for (int w = 0; w < count; w++) {
+		    out[w].writeByte( RUN );
+		    out[w].writeFloat( end );
+		    out[w].writeInt( boxed[w] );
+		    inbox[w].writeTo( out[w] );
+		    out[w].flush();
+		    inbox[w].reset();
+		    boxed[w] = 0;
+		    arrival[w] = Float.POSITIVE_INFINITY;
+		}
+
+		trace.clear();
+		for (int w = 0; w < count; w++) {
+		    for (int i = in[w].readInt(); i > 0; i--) {
+			int d = in[w].readInt();
+			float t = in[w].readFloat();
+			box[d].writeFloat( t );
+			box[d].writeInt( in[w].readInt() );
+			boxed[d] = boxed[d] + 1;
+			arrival[d] = Math.min( arrival[d], t );
+		    }
+		    for (int i = in[w].readInt(); i > 0; i--) {
+			trace.add( new Line( in[w].readLong(), in[w].readUTF() ) );
+		    }
+		    next[w] = in[w].readFloat();
+		}
+		print( trace );
+	    }
+
+	    trace.clear();
+	    for (int w = 0; w < count; w++) {
+		out[w].writeByte( STOP );
+		out[w].flush();
+	    }
+	    for (int w = 0; w < count; w++) {
+		for (int i = in[w].readInt(); i > 0; i--) {
+		    trace.add( new Line( in[w].readInt(), in[w].readUTF() ) );
+		}
+	    }
+	    print( trace ); // the summary, by gate number
+	}
+
+	// print lines in order of their keys, keeping the order of equals
+	private static void print( ArrayList <Line> lines ) {
+	    Collections.sort(
+		lines, Comparator.comparingLong( (Line l)->l.key )
+	    );
+	    for (Line l: lines) Logic.out().println( l.text );
+	}
+    }
+
+    // a line of output and the key that puts it in order
+    private static class Line {
+	final long key;
+	final String text;
+
+	Line( long key, String text ) {
+	    this.key = key;
+	    this.text = text;
+	}
+    }
+
+    /** A process that simulates one partition of the circuit
+     */
+    static class Worker extends Distributed {
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private int[] part;               // partition of each gate, by number
+	private int self;                 // partition of this worker
+
+	// events for other partitions, produced in the current window
+	private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+	private final DataOutputStream batch = new DataOutputStream( sent );
+	private int sentCount = 0;
+
+	// output lines, with the keys of the events that printed them
+	private final ArrayList <Line> lines = new ArrayList <Line> ();
+	private boolean summarizing = false;
+	private long summaryKey;
+
+	/** connect to the coordinator
+	 *  @param port the coordinator's port on this machine
+	 */
+	Worker( int port ) {
+	    DataInputStream i = null;
+	    DataOutputStream o = null;
+	    try {
+		Socket s = new Socket( InetAddress.getLoopbackAddress(), port );
+		s.setTcpNoDelay( true );
+		i = new DataInputStream(
+		    new BufferedInputStream( s.getInputStream() )
+		);
+		o = new DataOutputStream(
+		    new BufferedOutputStream( s.getOutputStream() )
+		);
+	    } catch (IOException e) {
+		lost( e );
+	    }
+	    in = i;
+	    out = o;
+	    worker = this;
+	}
+
+	void claim( Gate[] gates ) {
+	    try {
+		self = in.readInt();
+		int n = in.readInt();
+		if (n != gates.length) Errors.fatal(
+		    "Worker " + self + " read a different circuit"
+		);
+		part = new int[n];
+		for (int i = 0; i < n; i++) part[i] = in.readInt();
+	    } catch (IOException e) {
+		lost( e );
+	    }
+	    for (Gate g: gates) g.local = (part[g.number] == self);
+	    Logic.redirect( new PrintStream( new Capture() ) );
+	}
+
+	// add an event to the batch for the next window
+	private void forward(
+	    Gate destination, float time, int action, boolean v
+	) {
+	    try {
+		batch.writeInt( part[destination.number] );
+		batch.writeFloat( time );
+		batch.writeInt( (action << 1) | (v ? 1 : 0) );
+	    } catch (IOException e) {
+		lost( e ); // never happens, the batch is in memory
+	    }
+	    sentCount = sentCount + 1;
+	}
+
+	void run( Gate[] gates, Probes probes, float until ) {
+	    Simulator s = Simulator.current();
+	    try {
+		out.writeFloat( Simulator.next() );
+		out.flush();
+		while (in.readByte() == RUN) {
+		    float end = in.readFloat();
+		    for (int i = in.readInt(); i > 0; i--) {
+			float t = in.readFloat();
+			int code = in.readInt();
+			s.schedule( t, code >>> 1, (code & 1) != 0 );
+		    }
+		    Simulator.limit(
+			Math.min( Math.nextDown( end ), until ), Long.MAX_VALUE
+		    );
+		    Simulator.run();
+
+		    out.writeInt( sentCount );
+		    sent.writeTo( out );
+		    sent.reset();
+		    sentCount = 0;
+		    out.writeInt( lines.size() );
+		    for (Line l: lines) {
+			out.writeLong( l.key );
+			out.writeUTF( l.text );
+		    }
+		    lines.clear();
+		    out.writeFloat( Simulator.next() );
+		    out.flush();
+		}
+
+		if (Probes.summary) {
+		    summarizing = true;
+		    for (Gate g: gates) {
+			if (g.local && g.probed) {
+			    summaryKey = g.number;
+			    probes.summarize( g );
+			}
+		    }
+		}
+		out.writeInt( lines.size() );
+		for (Line l: lines) {
+		    out.writeInt( (int)l.key );
+		    out.writeUTF( l.text );
+		}
+		out.flush();
+	    } catch (IOException e) {
+		lost( e );
+	    }
+	}
+
+	// collects simulation output, line by line
+	private class Capture extends OutputStream {
+	    private final ByteArrayOutputStream line
+		= new ByteArrayOutputStream();
+
+	    public void write( int b ) {
+		if (b == '\n') {
+		    lines.add( new Line(
+			summarizing ? summaryKey : Simulator.key(),
+			line.toString()
+		    ) );
+		    line.reset();
+		} else if (b != '\r') {
+		    line.write( b );
+		}
+	    }
+	}
+    }
+
+} // class Distributed
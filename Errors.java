@@ -7,22 +7,60 @@
  *  Bug notices in the code indicate unsolved problems
  */
 public class Errors {
-    // error messages are counted.
-    private static int errorCount = 0;
+    /** thrown by fatal in place of exiting when errors are redirected
+     */
+    public static class Fatal extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+    }
+
+    // error messages are counted, separately for each thread.
+    private int errorCount = 0;
+    private java.io.PrintStream stream = null; // null means System.err
+
+    private static final ThreadLocal <Errors> current
+	= ThreadLocal.withInitial( ()->new Errors() );
 
     /** Allow public read-only access to the count of error messages
      * @return the count
      */
     public static int count() {
-	return errorCount;
+	return current.get().errorCount;
+    }
+
+    /** Send this thread's error messages to a stream other than System.err
+     *  From then on, fatal errors throw Fatal instead of exiting.
+     * @arg s the stream
+     */
+    public static void redirect( java.io.PrintStream s ) {
+	current.get().stream = s;
+    }
+
+    /** Forget this thread's error count and stream
+     */
+    public static void reset() {
+	current.remove();
+    }
+
+    /** Report things that are worth knowing but are not errors, output a
+     *  message and return without counting it
+     * @arg message the message to output
+     */
+    public static void note( String message ) {
+	Errors e = current.get();
+	if (e.stream == null) {
+	    System.err.println( "Logic: " + message );
+	} else {
+	    e.stream.println( "Logic: " + message );
+	}
     }
 
     /** Report nonfatal errors, output a message and return
      * @arg message the message to output
      */
     public static void warn( String message ) {
-	System.err.println( "Logic: " + message );
-	errorCount = errorCount + 1;
+	note( message );
+	Errors e = current.get();
+	e.errorCount = e.errorCount + 1;
     }
 
     /** Report fatal errors, output a message and exit, never to return
@@ -30,6 +68,7 @@ public class Errors {
      */
     public static void fatal( String message ) {
 	warn( message );
+	if (current.get().stream != null) throw new Fatal();
 	System.exit( 1 );
     }
 }
@@ -0,0 +1,225 @@
+/* EventHeap.java
+ * Off-heap priority queue of compact simulation events
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/** A binary min-heap of events, each packed into a single long.
+ *  The storage is a direct buffer outside the Java heap, optionally a
+ *  memory-mapped file, so pending events cost the garbage collector nothing.
+ *  Each key holds the event time in its high half and an event code in its
+ *  low half; keys are ordered by time, and events at the same time are
+ *  ordered by code so that runs are deterministic.
+ *  The buffers are NIO buffers and not java.lang.foreign memory segments
+ *  because the tree is built with JDK 17, where that API is still only an
+ *  incubator module; a mapped LongBuffer gives the same off-heap layout.
+ *  @see Simulator
+ */
+class EventHeap {
+    private static final int BYTES = Long.BYTES;
+
+    // the most keys a buffer can hold, since its size in bytes is an int
+    static final int MAX = Integer.MAX_VALUE / BYTES;
+
+    private LongBuffer heap;          // heap[0] is the least key
+    private int size = 0;             // count of keys in the heap
+    private final RandomAccessFile mapped; // backing file, or null
+    private final FileChannel file;   // its channel, or null if anonymous
+
+    /** construct an empty heap in anonymous off-heap memory
+     */
+    public EventHeap() {
+	mapped = null;
+	file = null;
+	heap = allocate( 1024 );
+    }
+
+    /** construct an empty heap in a memory-mapped file
+     *  @param f the file to map; it is created or overwritten
+     *  @throws IOException if the file cannot be mapped
+     */
+    public EventHeap( File f ) throws IOException {
+	mapped = new RandomAccessFile( f, "rw" );
+	file = mapped.getChannel();
+	heap = allocate( 1024 );
+    }
+
+    /** pack a time and an event code into a key
+     *  @param time the event time
+     *  @param code the event code
+     *  @return the key; keys compare as signed longs
+     */
+    public static long key( float time, int code ) {
+	int t = Float.floatToIntBits( time );
+	t = t ^ ((t >> 31) & 0x7FFFFFFF);  // make negative times sort low
+	return ((long)t << 32) | ((code ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    /** recover the time from a key
+     *  @param key the key
+     *  @return the time packed into the key
+     */
+    public static float time( long key ) {
+	int t = (int)(key >> 32);
+	return Float.intBitsToFloat( t ^ ((t >> 31) & 0x7FFFFFFF) );
+    }
+
+    /** recover the event code from a key
+     *  @param key the key
+     *  @return the code packed into the key
+     */
+    public static int code( long key ) {
+	return ((int)key) ^ Integer.MIN_VALUE;
+    }
+
+    // get storage for at least n keys
+    private LongBuffer allocate( int n ) {
+	final ByteBuffer b;
+	if (file == null) {
+	    b = ByteBuffer.allocateDirect( n * BYTES );
+	} else try {
+	    b = file.map( FileChannel.MapMode.READ_WRITE, 0, (long)n * BYTES );
+	} catch (IOException e) {
+	    Errors.fatal( "Can't map the event file: " + e.getMessage() );
+	    return null; // never reached
+	}
+	return b.order( ByteOrder.nativeOrder() ).asLongBuffer();
+    }
+
+    /** release the backing file, if there is one; the heap can't be used
+     *  after this
+     */
+    void close() {
+	if (mapped == null) return;
+	try {
+	    mapped.close();
+	} catch (IOException e) {
+	    Errors.warn( "Can't close the event file: " + e.getMessage() );
+	}
+    }
+
+    /** @return true if there are no events in the heap
+     */
+    public boolean isEmpty() {
+	return size == 0;
+    }
+
+    /** @return the number of events in the heap
+     */
+    public int size() {
+	return size;
+    }
+
+    /** @return true if some events are not in memory, so get can't see
+     *  them; see SpillHeap
+     */
+    boolean spilled() {
+	return false;
+    }
+
+    /** @param i an index, 0 <= i < size()
+     *  @return the key at that index, keys are in heap order, not sorted
+     */
+    public long get( int i ) {
+	return heap.get( i );
+    }
+
+    /** @return the least key in the heap; the heap must not be empty
+     */
+    public long peek() {
+	return heap.get( 0 );
+    }
+
+    /** add a key to the heap
+     *  @param k the key, usually from key( time, code )
+     */
+    public void add( long k ) {
+	if (size == heap.capacity()) {
+	    if (size == MAX) Errors.fatal(
+		"Too many pending events, more than " + MAX + "; try -memory"
+	    );
+	    LongBuffer bigger = allocate( (int)Math.min( size * 2L, MAX ) );
+	    if (file == null) {
+		heap.rewind();
+		bigger.put( heap );
+	    } // a bigger mapping of the same file already holds the keys
+	    heap = bigger;
+	}
+	int i = size;
+	size = size + 1;
+	while (i > 0) { // sift up
+	    int parent = (i - 1) >>> 1;
+	    long p = heap.get( parent );
+	    if (p <= k) break;
+	    heap.put( i, p );
+	    i = parent;
+	}
+	heap.put( i, k );
+    }
+
+    /** a place for keys removed in order, see split
+     */
+    interface Sink {
+	void put( long k ) throws IOException;
+    }
+
+    /** remove all but the n least keys, passing them to out in order; the
+     *  least keys wait meanwhile in the slots freed as keys are removed, so
+     *  this takes no memory beyond the heap's own
+     *  @param n how many keys stay, at most half of size()
+     *  @param out where the rest go
+     *  @throws IOException if out throws it
+     */
+    void split( int n, Sink out ) throws IOException {
+	int all = size;
+	for (int i = 0; i < n; i++) {
+	    long k = remove();
+	    heap.put( all - 1 - i, k ); // the slot just freed
+	}
+	while (size > 0) out.put( remove() );
+	// sorted keys are in heap order, and since n <= all - n, they can
+	// be moved without overwriting any not yet moved
+	for (int i = 0; i < n; i++) heap.put( i, heap.get( all - 1 - i ) );
+	size = n;
+    }
+
+    /** remove and return the least key; the heap must not be empty
+     *  @return the key that was removed
+     */
+    public long remove() {
+	long least = heap.get( 0 );
+	size = size - 1;
+	if (size > 0) {
+	    long k = heap.get( size );
+	    int i = 0;
+	    for (;;) { // sift down
+		int child = 2 * i + 1;
+		if (child >= size) break;
+		long c = heap.get( child );
+		if (child + 1 < size) {
+		    long c2 = heap.get( child + 1 );
+		    if (c2 < c) {
+			child = child + 1;
+			c = c2;
+		    }
+		}
+		if (k <= c) break;
+		heap.put( i, c );
+		i = child;
+	    }
+	    heap.put( i, k );
+	}
+	return least;
+    }
+
+} // class EventHeap
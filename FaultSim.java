@@ -0,0 +1,492 @@
+/* FaultSim.java
+ * Stuck-at fault simulation of a logic circuit
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.stream.IntStream;
+
+/** Measures how many stuck-at faults a simulation run can detect.
+ *  Every output pin in use, every observed output and every input pin in
+ *  use can be stuck at 0 or 1, including pins a const gate drives.
+ *  Faults are simulated 63 at a time, bit-parallel: each logic value is
+ *  a long whose bit 0 belongs to the good circuit and whose other bits
+ *  belong to faulty copies of it.  Every event carries a mask of the
+ *  copies it applies to, so each copy behaves exactly as a simulation of
+ *  that faulty circuit on its own would.  A fault is detected when an
+ *  observed output of its copy differs from the good circuit, and from
+ *  then on its copy is no longer simulated.  Batches of faults run in
+ *  parallel on all processors.
+ *  Delays are exact, without the random variation of Simulator runs, so
+ *  that results do not depend on the order the batches run in.
+ *  @see Simulator
+ */
+class FaultSim {
+
+    // kinds of gates, as far as fault simulation cares
+    private static final int AND = 0;
+    private static final int OR = 1;
+    private static final int NOT = 2;
+    private static final int CONST = 3;
+    private static final int INPUT = 4;
+    private static final int LUT = 5;    // any other truth table
+
+    // how many faults each batch simulates, bit 0 is the good circuit
+    private static final int BATCH = 63;
+
+    // the circuit, flattened
+    private final Gate[] gates;
+    private final int[] kind;
+    private final float[] delay;
+    private final long[] table;      // for LUT gates, see LutGate
+    private final boolean[] observed;
+
+    // the input pins of gate g are pinBase[g]..pinBase[g+1]-1
+    private final int[] pinBase;
+
+    // fan-out in compressed sparse row form
+    // the wires out of gate g are outDst[outStart[g]..outStart[g+1]-1]
+    private final int[] outStart;
+    private final int[] outDst;      // destination gate
+    private final int[] outPin;      // destination pin, from 0
+    private final float[] outDelay;
+    private final boolean[] outFalse; // from the false pin of a const gate
+
+    // the faults; pin -1 is the output, -2 the false pin of a const gate
+    private static final int OUT = -1;
+    private static final int FALSE = -2;
+    private final int[] faultGate;
+    private final int[] faultPin;
+    private final boolean[] faultValue;
+    private final float[] detected;  // when detected, NaN if never
+
+    // the stimulus, read in full so every batch can replay it
+    private final float[] stimTime;
+    private final int[] stimGate;
+    private final boolean[] stimValue;
+
+    private final float horizon;     // when to stop simulating
+
+    /** flatten the circuit of this thread and list its faults
+     *  @param gates the gates of the circuit, by number
+     *  @param explicit true if the probes were given explicitly
+     *  @param stimulus the stimulus to apply, or null
+     *  @param horizon the time when simulation of each batch stops
+     */
+    FaultSim( Gate[] gates, boolean explicit, Stimulus stimulus, float horizon ) {
+	this.gates = gates;
+	this.horizon = horizon;
+	int n = gates.length;
+
+	kind = new int[n];
+	delay = new float[n];
+	table = new long[n];
+	pinBase = new int[n + 1];
+	for (int g = 0; g < n; g++) {
+	    kind[g] = kindOf( gates[g] );
+	    delay[g] = gates[g].delay;
+	    int pins = 0;
+	    if (kind[g] == NOT) {
+		pins = 1;
+	    } else if ((kind[g] == AND) || (kind[g] == OR)) {
+		pins = 2;
+	    } else if (kind[g] == LUT) {
+		table[g] = ((LutGate)gates[g]).table;
+		pins = ((LutGate)gates[g]).inputs;
+	    }
+	    pinBase[g + 1] = pinBase[g] + pins;
+	}
+
+	// every wire that ends on an input pin, even if it never changes
+	ArrayList <Wire> connected = new ArrayList <Wire> ();
+	boolean[] drives = new boolean[n];
+	for (Wire w: Logic.wires()) {
+	    if (w.srcPin() < 0) continue;
+	    drives[w.source().number] = true;
+	    if (w.dstPin() < 0) continue;
+	    if (kind[w.destination().number] == CONST) continue;
+	    if (kind[w.destination().number] == INPUT) continue;
+	    connected.add( w );
+	}
+	outStart = new int[n + 1];
+	for (Wire w: connected) outStart[w.source().number + 1]++;
+	for (int g = 0; g < n; g++) outStart[g + 1] += outStart[g];
+	outDst = new int[connected.size()];
+	outPin = new int[connected.size()];
+	outDelay = new float[connected.size()];
+	outFalse = new boolean[connected.size()];
+	int[] next = Arrays.copyOf( outStart, n );
+	for (Wire w: connected) {
+	    int e = next[w.source().number]++;
+	    int d = w.destination().number;
+	    outDst[e] = d;
+	    outPin[e] = (kind[d] == NOT) ? 0 : w.dstPin() - 1;
+	    outDelay[e] = w.delay();
+	    outFalse[e] = (kind[w.source().number] == CONST)
+		       && (w.srcPin() == 0);
+	}
+
+	// probed gates are observed, or else those that drive nothing
+	observed = new boolean[n];
+	for (int g = 0; g < n; g++) {
+	    observed[g] = explicit ? gates[g].probed : !drives[g];
+	}
+
+	// every output pin in use or observed and every input pin in use,
+	// stuck at 0 and at 1
+	ArrayList <int[]> sites = new ArrayList <int[]> ();
+	HashSet <Integer> pins = new HashSet <Integer> ();
+	for (int g = 0; g < n; g++) {
+	    boolean out = observed[g];
+	    boolean f = false;
+	    for (int e = outStart[g]; e < outStart[g + 1]; e++) {
+		if (outFalse[e]) f = true;
+		else out = true;
+	    }
+	    if (out) sites.add( new int[] { g, OUT } );
+	    if (f) sites.add( new int[] { g, FALSE } );
+	}
+	for (int e = 0; e < outDst.length; e++) {
+	    pins.add( pinBase[outDst[e]] + outPin[e] );
+	}
+	ArrayList <Integer> sorted = new ArrayList <Integer> ( pins );
+	Collections.sort( sorted );
+	int at = 0; // the gate whose pins are being listed
+	for (int p: sorted) {
+	    while (pinBase[at + 1] <= p) at++;
+	    sites.add( new int[] { at, p - pinBase[at] } );
+	}
+
+	int f = sites.size() * 2;
+	faultGate = new int[f];
+	faultPin = new int[f];
+	faultValue = new boolean[f];
+	detected = new float[f];
+	for (int i = 0; i < f; i++) {
+	    int[] site = sites.get( i >> 1 );
+	    faultGate[i] = site[0];
+	    faultPin[i] = site[1];
+	    faultValue[i] = (i & 1) != 0;
+	    detected[i] = Float.NaN;
+	}
+
+	// the stimulus, in arrays that grow as it is read
+	float[] t = new float[1024];
+	int[] g = new int[1024];
+	boolean[] v = new boolean[1024];
+	int count = 0;
+	if (stimulus != null) while (stimulus.next()) {
+	    if (count == t.length) {
+		t = Arrays.copyOf( t, count * 2 );
+		g = Arrays.copyOf( g, count * 2 );
+		v = Arrays.copyOf( v, count * 2 );
+	    }
+	    t[count] = stimulus.time();
+	    g[count] = stimulus.gate().number;
+	    v[count] = stimulus.value();
+	    count = count + 1;
+	}
+	stimTime = Arrays.copyOf( t, count );
+	stimGate = Arrays.copyOf( g, count );
+	stimValue = Arrays.copyOf( v, count );
+    }
+
+    // classify a gate by its kind
+    private static int kindOf( Gate g ) {
+	String k = g.kind();
+	if ("and".equals( k )) return AND;
+	if ("or".equals( k )) return OR;
+	if ("not".equals( k )) return NOT;
+	if ("const".equals( k )) return CONST;
+	if (g instanceof LutGate) return LUT;
+	return INPUT;
+    }
+
+    /** simulate all faults, in parallel batches, and report the coverage
+     */
+    void run() {
+	boolean any = false;
+	for (boolean o: observed) any = any || o;
+	if (!any) {
+	    Errors.warn( "No outputs to observe: use probe to name some" );
+	    return;
+	}
+
+	int batches = (faultGate.length + BATCH - 1) / BATCH;
+	IntStream.range( 0, batches ).parallel().forEach(
+	    (int b)->new Batch( b * BATCH,
+		Math.min( faultGate.length, (b + 1) * BATCH )
+	    ).run()
+	);
+
+	int count = 0;
+	for (float d: detected) if (!Float.isNaN( d )) count++;
+	Logic.out().println(
+	    "Fault coverage: " + count + " of " + detected.length
+	    + " faults detected by time " + horizon + " ("
+	    + String.format( "%.1f", 100.0 * count / Math.max( 1, detected.length ) )
+	    + "%)"
+	);
+	for (int i = 0; i < detected.length; i++) {
+	    if (Float.isNaN( detected[i] )) {
+		Logic.out().println( "Undetected: " + faultName( i ) );
+	    }
+	}
+    }
+
+    // the textual name of fault i
+    private String faultName( int i ) {
+	Gate g = gates[faultGate[i]];
+	final String pin;
+	if (faultPin[i] == FALSE) {
+	    pin = "false";
+	} else if (faultPin[i] == OUT) {
+	    pin = g.outputPin();
+	} else if (kind[faultGate[i]] == NOT) {
+	    pin = "in";
+	} else {
+	    pin = "in" + (faultPin[i] + 1);
+	}
+	return g.toString() + " " + pin
+	     + " stuck at " + (faultValue[i] ? "1" : "0");
+    }
+
+    /** the simulation of one batch of faults
+     */
+    private class Batch {
+	private final int first;      // number of the fault in bit 1
+
+	// the bits of faulty copies not yet detected
+	private long active;
+
+	// bits forced to 0 or to 1 by the faults of this batch
+	private final long[] outForce0;
+	private final long[] outForce1;
+	private final long[] falseForce1; // stuck at 0 changes nothing
+	private final long[] pinForce0;   // indexed by pinBase[gate] + pin
+	private final long[] pinForce1;
+
+	// the state of every copy of the circuit
+	private final long[] pin;         // indexed by pinBase[gate] + pin
+	private final long[] value;       // computed by input changes
+	private final long[] out;         // most recent actual output
+
+	// pending events; each key's code names a slot holding the rest
+	private final EventHeap events = new EventHeap();
+	private int[] slotTarget = new int[256]; // gate * 8 + pin, or + 7
+	private long[] slotValue = new long[256];
+	private long[] slotMask = new long[256];
+	private int[] free = new int[256];
+	private int freeCount = 0;
+	private int slots = 0;
+
+	// the truth table of a LUT gate, each bit spread over a long
+	private final long[] rows = new long[1 << LutGate.MAX_INPUTS];
+
+	private static final int OUTPUT = 7;
+
+	Batch( int first, int last ) {
+	    this.first = first;
+	    int n = gates.length;
+	    outForce0 = new long[n];
+	    outForce1 = new long[n];
+	    falseForce1 = new long[n];
+	    pinForce0 = new long[pinBase[n]];
+	    pinForce1 = new long[pinBase[n]];
+	    pin = new long[pinBase[n]];
+	    value = new long[n];
+	    out = new long[n];
+
+	    active = 0;
+	    for (int i = first; i < last; i++) {
+		long bit = 1L << (i - first + 1);
+		active |= bit;
+		int g = faultGate[i];
+		if (faultPin[i] == FALSE) {
+		    if (faultValue[i]) falseForce1[g] |= bit;
+		} else if (faultPin[i] == OUT) {
+		    if (faultValue[i]) outForce1[g] |= bit;
+		    else outForce0[g] |= bit;
+		} else {
+		    int p = pinBase[g] + faultPin[i];
+		    if (faultValue[i]) pinForce1[p] |= bit;
+		    else pinForce0[p] |= bit;
+		}
+	    }
+	}
+
+	/** simulate this batch until every fault is detected or time is up
+	 */
+	void run() {
+	    final long all = active | 1L;
+
+	    // launch the simulation as Gate.checkSanity does
+	    for (int g = 0; g < gates.length; g++) {
+		if ((kind[g] == NOT) || (kind[g] == CONST)
+		||  ((kind[g] == LUT) && ((table[g] & 1) != 0))) {
+		    value[g] = all;
+		    schedule( delay[g], g * 8 + OUTPUT, 0, all );
+		}
+	    }
+	    // faults that are 1 from the start
+	    for (int g = 0; g < gates.length; g++) {
+		if (outForce1[g] != 0) {
+		    out[g] |= outForce1[g];
+		    observe( 0.0f, g );
+		    fanout( 0.0f, g, outForce1[g] );
+		}
+		if (falseForce1[g] != 0) {
+		    for (int e = outStart[g]; e < outStart[g + 1]; e++) {
+			if (outFalse[e]) schedule( outDelay[e],
+			    outDst[e] * 8 + outPin[e], -1L, falseForce1[g]
+			);
+		    }
+		}
+		for (int p = pinBase[g]; p < pinBase[g + 1]; p++) {
+		    if (pinForce1[p] != 0) {
+			pin[p] |= pinForce1[p];
+			evaluate( 0.0f, g, pinForce1[p] );
+		    }
+		}
+	    }
+
+	    int s = 0; // next stimulus record
+	    while (active != 0) {
+		boolean haveEvent = !events.isEmpty();
+		if (!haveEvent && (s == stimTime.length)) break;
+		if ((s < stimTime.length) && (!haveEvent
+		||  (stimTime[s] <= EventHeap.time( events.peek() )))) {
+		    float t = stimTime[s];
+		    if (t > horizon) break;
+		    int g = stimGate[s];
+		    value[g] = stimValue[s] ? all : 0L;
+		    schedule( t + delay[g], g * 8 + OUTPUT, 0, all );
+		    s++;
+		    continue;
+		}
+
+		long k = events.remove();
+		float t = EventHeap.time( k );
+		if (t > horizon) break;
+		int slot = EventHeap.code( k );
+		int target = slotTarget[slot];
+		long v = slotValue[slot];
+		long m = slotMask[slot] & (active | 1L);
+		free[freeCount++] = slot;
+		if (m == 0) continue;
+
+		int g = target >> 3;
+		if ((target & 7) == OUTPUT) {
+		    outputChange( t, g, m );
+		} else {
+		    int p = pinBase[g] + (target & 7);
+		    m &= ~(pinForce0[p] | pinForce1[p]); // stuck pins see nothing
+		    if (m == 0) continue;
+		    pin[p] = (pin[p] & ~m) | (v & m);
+		    evaluate( t, g, m );
+		}
+	    }
+	}
+
+	// the inputs of gate g changed for the copies in mask m
+	private void evaluate( float t, int g, long m ) {
+	    int base = pinBase[g];
+	    if (kind[g] == NOT) { // not gates always schedule an output
+		value[g] = (value[g] & ~m) | (~pin[base] & m);
+		schedule( t + delay[g], g * 8 + OUTPUT, 0, m );
+		return;
+	    }
+	    final long v;
+	    if (kind[g] == AND) {
+		v = pin[base] & pin[base + 1];
+	    } else if (kind[g] == OR) {
+		v = pin[base] | pin[base + 1];
+	    } else if (kind[g] == LUT) {
+		v = lookup( g, base );
+	    } else {
+		return; // const and input gates have no inputs
+	    }
+	    long changed = (v ^ value[g]) & m;
+	    if (changed != 0) {
+		value[g] ^= changed;
+		schedule( t + delay[g], g * 8 + OUTPUT, 0, changed );
+	    }
+	}
+
+	// look up the output of LUT gate g in every copy, by a tree of
+	// multiplexers, the first level selected by in1, the next by in2 ...
+	private long lookup( int g, int base ) {
+	    int n = 1 << (pinBase[g + 1] - base);
+	    for (int r = 0; r < n; r++) rows[r] = -((table[g] >>> r) & 1L);
+	    for (int p = base; n > 1; p++) {
+		long sel = pin[p];
+		n = n >> 1;
+		for (int r = 0; r < n; r++) {
+		    rows[r] = (rows[2 * r] & ~sel) | (rows[2 * r + 1] & sel);
+		}
+	    }
+	    return rows[0];
+	}
+
+	// the output of gate g may change for the copies in mask m
+	private void outputChange( float t, int g, long m ) {
+	    long changed = (value[g] ^ out[g]) & m
+			 & ~(outForce0[g] | outForce1[g]);
+	    if (changed == 0) return;
+	    out[g] ^= changed;
+	    observe( t, g );
+	    fanout( t, g, changed );
+	}
+
+	// compare the copies at gate g with the good circuit
+	private void observe( float t, int g ) {
+	    if (!observed[g]) return;
+	    long good = ((out[g] & 1L) != 0) ? -1L : 0L;
+	    long differ = (out[g] ^ good) & active;
+	    while (differ != 0) {
+		int bit = Long.numberOfTrailingZeros( differ );
+		detected[first + bit - 1] = t;
+		differ &= differ - 1;
+	    }
+	    active &= ~((out[g] ^ good));
+	}
+
+	// send the output of gate g to its fan-out, for the copies in mask m
+	private void fanout( float t, int g, long m ) {
+	    for (int e = outStart[g]; e < outStart[g + 1]; e++) {
+		if (outFalse[e]) continue; // that pin never changes
+		schedule(
+		    t + outDelay[e], outDst[e] * 8 + outPin[e], out[g], m
+		);
+	    }
+	}
+
+	// schedule an event in this batch
+	private void schedule( float t, int target, long v, long m ) {
+	    final int slot;
+	    if (freeCount > 0) {
+		slot = free[--freeCount];
+	    } else {
+		slot = slots++;
+		if (slot == slotTarget.length) {
+		    int size = slot * 2;
+		    slotTarget = Arrays.copyOf( slotTarget, size );
+		    slotValue = Arrays.copyOf( slotValue, size );
+		    slotMask = Arrays.copyOf( slotMask, size );
+		    free = Arrays.copyOf( free, size );
+		}
+	    }
+	    slotTarget[slot] = target;
+	    slotValue[slot] = v;
+	    slotMask[slot] = m;
+	    events.add( EventHeap.key( t, slot ) );
+	}
+    }
+
+} // class FaultSim
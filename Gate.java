@@ -7,15 +7,14 @@
  * Bug notices in the code indicate unsolved problems
  */
 
-import java.util.LinkedList;
 import java.util.Scanner;
 
 /** Gates process inputs from Wires and deliver outputs to Wires
  *  @see Wire
- *  @see AndGate
- *  @see OrGate
+ *  @see LutGate
  *  @see NotGate
  *  @see ConstGate
+ *  @see InputGate
  */
 public abstract class Gate {
     /** constructors may throw this when an error prevents construction
@@ -32,6 +31,34 @@ public abstract class Gate {
      */
     protected final float delay;         // the delay of this gate, in seconds
 
+    /** when true, gates have exactly their given delays
+     *  otherwise each delay varies randomly by up to 5 percent
+     */
+    static boolean exact = false;
+
+    /** when true, a gate evaluates its inputs once per time, after all of
+     *  the input changes at that time, instead of once per change.
+     *  Changes that cancel out at one time then cause no output events.
+     */
+    static boolean delta = false;
+
+    /** number is the position of this gate in the circuit, counting from 0
+     *  it is set when the circuit is loaded
+     */
+    int number = -1;
+
+    // output tracing, see Probes
+    boolean probed = true;               // print changes of this gate?
+    int changes = 0;                     // count of output changes, if probed
+    int evaluations = 0;                 // count of evaluations of inputs
+
+    // is this gate simulated by this process? see Distributed
+    boolean local = true;
+
+    // the simulator and the circuit of the thread that built this gate
+    protected final Simulator simulator = Simulator.current();
+    private final Logic.Circuit circuit = Logic.circuit();
+
     // information about gate connections and logic values is all in subclasses
 
     /** Constructor used only from within subclasses of class Gate
@@ -43,6 +70,22 @@ public abstract class Gate {
 	this.delay = delay;
     }
 
+    /** The fields of a gate description, scanned but not yet checked
+     */
+    static final class Text {
+	final String name;
+	final String kind;
+	final float delay;
+	final String rest;                   // the rest of the line
+
+	Text( String name, String kind, float delay, String rest ) {
+	    this.name = name;
+	    this.kind = kind;
+	    this.delay = delay;
+	    this.rest = rest;
+	}
+    }
+
     /** The public use this factory to construct gates
      *  @param sc the scanner from which the textual gate description is read
      *  @return the newly constructed gate
@@ -50,11 +93,21 @@ public abstract class Gate {
      *  constructing a Gate
      */
     public final static Gate factory( Scanner sc ) throws ConstructorFailure {
-	// tempraries used while constructing a gate
+	return build( scan( sc ) );
+    }
+
+    /** scan a gate description, up to and including the end of its line
+     *  @param sc the scanner from which the textual gate description is read
+     *  @return the fields of the description
+     *  @throws ConstructorFailure if a field is missing
+     *  Only missing fields and bad lut truth tables are reported here;
+     *  build checks the rest.
+     */
+    static Text scan( Scanner sc ) throws ConstructorFailure {
+	// tempraries used while scanning a gate
 	final String name;
 	final String kind;
 	final float delay;
-	final Gate newGate;
 
 	// scan basic fields of input line
 	try {
@@ -67,41 +120,125 @@ public abstract class Gate {
 	    delay = ScanSupport.nextFloat(
 		sc, ()->"gate " + name + " " + kind + " ???"
 	    );
+	    if ("lut".equals( kind )) {
+		return new Text(
+		    name, scanLut( sc, name, delay ), delay, sc.nextLine()
+		);
+	    }
 	} catch (ScanSupport.NotFound e) {
 	    throw new ConstructorFailure();
 	}
+	return new Text( name, kind, delay, sc.nextLine() );
+    }
+
+    // scan the input count and truth table after the delay of a lut gate
+    // and return the kind, as LutGate.kind() gives it
+    private static String scanLut( Scanner sc, String name, float delay )
+	throws ScanSupport.NotFound
+    {
+	final String context = "gate " + name + " lut " + delay;
+	final int inputs = ScanSupport.nextInt( sc, ()->context + " ???" );
+	final String bits = ScanSupport.nextName(
+	    sc, ()->context + " " + inputs + " ???"
+	);
+	long table = -1;
+	boolean good = (inputs >= 1) && (inputs <= LutGate.MAX_INPUTS);
+	try {
+	    if (bits.startsWith( "0x" )) {
+		table = Long.parseUnsignedLong( bits.substring( 2 ), 16 );
+	    } else {
+		table = Long.parseUnsignedLong( bits );
+	    }
+	} catch (NumberFormatException e) {
+	    good = false;
+	}
+	if (good && (inputs < LutGate.MAX_INPUTS)) {
+	    good = (table >>> (1 << inputs)) == 0; // no bits past the table
+	}
+	if (!good) {
+	    Errors.warn( "Bad truth table: " + context + " " + inputs + " " + bits );
+	    sc.nextLine();
+	    throw new ScanSupport.NotFound();
+	}
+	return "lut " + inputs + " 0x" + Long.toHexString( table );
+    }
+
+    /** check a scanned gate description and construct the gate
+     *  @param t the fields of the description
+     *  @return the newly constructed gate
+     *  @throws ConstructorFailure if the gate cannot be constructed
+     */
+    static Gate build( Text t ) throws ConstructorFailure {
+	final Gate newGate;
 
 	// check the fields
-	if (Logic.findGate( name ) != null) {
-	    Errors.warn( "Redefinition: gate " + name + " " + kind );
-	    sc.nextLine();
+	if (Logic.findGate( t.name ) != null) {
+	    Errors.warn( "Redefinition: gate " + t.name + " " + t.kind );
 	    throw new ConstructorFailure();
 	}
 
-	if (delay < 0.0F) Errors.warn(
-	    "Negative delay: " + "gate " + name + " " + kind + " " + delay
+	if (t.delay < 0.0F) Errors.warn(
+	    "Negative delay: " + "gate " + t.name + " " + t.kind + " " + t.delay
 	    // don't throw a failure here, we can build a gate with this error
 	);
 
 	// now construct the right kind of gate
-	if ("and".equals( kind )) {
-	    newGate = new AndGate( name, delay );
-	} else if ("or".equals( kind )) {
-	    newGate = new OrGate( name, delay );
-	} else if ("not".equals( kind )) {
-	    newGate = new NotGate( name, delay );
-	} else if ("const".equals( kind )) {
-	    newGate = new ConstGate( name, delay );
-	} else {
-	    Errors.warn( "Unknown gate kind: gate " + name + " " + kind );
-	    sc.nextLine();
+	newGate = make( t.name, t.kind, t.delay );
+	if (newGate == null) {
+	    Errors.warn( "Unknown gate kind: gate " + t.name + " " + t.kind );
 	    throw new ConstructorFailure();
 	}
 
-	ScanSupport.lineEnd( sc, ()->newGate.toString() );
+	ScanSupport.lineEnd( t.rest, ()->newGate.toString() );
 	return newGate;
     }
 
+    /** can make construct gates of a kind?
+     *  @param kind the kind, as in the circuit description
+     *  @return true if make knows the kind
+     */
+    static boolean isKind( String kind ) {
+	return "not".equals( kind ) || "const".equals( kind )
+	    || "input".equals( kind ) || LutGate.isBuiltIn( kind )
+	    || kind.startsWith( "lut " );
+    }
+
+    /** construct a gate from fields that have already been scanned
+     *  @param name the name of the new gate
+     *  @param kind the kind of the new gate, as in the circuit description
+     *  @param delay the delay of the new gate
+     *  @return the newly constructed gate, or null if kind is unknown
+     */
+    static Gate make( String name, String kind, float delay ) {
+	if ("not".equals( kind )) {
+	    return new NotGate( name, delay );
+	} else if ("const".equals( kind )) {
+	    return new ConstGate( name, delay );
+	} else if ("input".equals( kind )) {
+	    return new InputGate( name, delay );
+	} else if (kind.startsWith( "lut " )) { // as scanned, see scanLut
+	    String[] f = kind.split( " " );
+	    return new LutGate( name, delay, Integer.parseInt( f[1] ),
+		Long.parseUnsignedLong( f[2].substring( 2 ), 16 )
+	    );
+	} else {
+	    return LutGate.builtIn( name, kind, delay );
+	}
+    }
+
+    /** construct a const gate to take the place of a logic gate
+     *  @param old the gate replaced, see ConstGate
+     *  @return the newly constructed gate
+     */
+    static Gate makeConst( LogicGate old ) {
+	return new ConstGate( old );
+    }
+
+    /** get the kind of this gate, as given in the circuit description
+     *  @return the kind, such that make( name, kind(), delay ) is a copy
+     */
+    abstract String kind();
+
     /** tell the gate that one of its input pins is in use
      *  @param w the wire that is connected
      *  @param pinName the text of a pin name
@@ -117,6 +254,11 @@ public abstract class Gate {
      */
     public abstract int registerOutput( Wire w, String pinName );
 
+    /** tell the gate that a wire is no longer connected to its outputs
+     *  @param w a wire previously given to registerOutput
+     */
+    abstract void unregisterOutput( Wire w );
+
     /** get the name of the input pin, given its number
      *  To understand the relationship between pin name and pin numbers,
      *  note that if n is a legal name of an input to gate g,
@@ -140,265 +282,60 @@ public abstract class Gate {
      */
     public abstract void checkSanity();
 
-    // Simulation methods
-
-    /** simulate the change of one of this gate's inputs
-     *  @param time the time when the input changes
-     *  @param dstPin the pin that changes
-     *  @param v the new logic value
-     */
-    public abstract void inputChangeEvent( float time, int dstPin, boolean v );
-
-} // abstract class Gate
-
-/** Gathers all of the properties common to single-output gates
- *  Specifically, all LogicGates drive a single list of output wires
- *  with a single output value when an OutputChangeEvent occurs.
- *  @see AndGate
- *  @see OrGate
- *  @see NotGate
- */
-abstract class LogicGate extends Gate {
-    // set of all wires out of this gate
-    private LinkedList <Wire> outgoing = new LinkedList <Wire> ();
-
-    // this gate's value, computed by input change events
-    protected boolean value = false;
-
-    // this gate's most recent actual output value
-    private boolean outValue = false;
-
-    /** The constructor used only from subclasses of LogicGate
-     *  @param name used to initialize the final field
-     *  @param delay used to initialize the final field
-     */
-    public LogicGate( String name, float delay ) {
-	super( name, delay );
-    }
-
-    /** tell the gate that one of its output pins is in use
-     *  @param w the wire that is connected
-     *  @param pinName
-     *  @return corresponding pin number
-     */
-    public final int registerOutput( Wire w, String pinName ) {
-	if ("out".equals( pinName )) {
-	    outgoing.add( w );
-	    return 0;
-	} else {
-	    Errors.warn( "Illegal output pin: " + name + " " + pinName );
-	    return -1;
-	}
-    }
-
-    /** get the name of the output pin, given its number
-     *  @param pinNumber
-     *  @return pinName
-     */
-    public final String outPinName( int pinNumber ) {
-	if (pinNumber == 0) return "out";
-	return "???";
-    }
-
-    // Simulation methods
-
-    /** Simulate an output change on this wire
-     *  @param time tells when this wire's input changes
-     *  Passes the new value to the input of the gate to which this wire goes.
-     *  Uses the this.value field to determine the new output value.
-     *  Output change events are scheduled (directly or indirectly) by the
-     *  input change event of the actual gate object.
-     *  @see Gate.inputChangeEvent
-     */
-    protected final void outputChangeEvent( float time ) {
-	if (value != outValue) { // only if the output actually changes
-	    outValue = value;
-	    System.out.println(
-		"At " + time + " " + toString() +
-		" out " + " changes to " + value
-	    );
-	    for (Wire w: outgoing) {
-		w.inputChangeEvent( time, value );
-	    }
-	}
-    }
-
-} // abstract class LogicGate
-
-/** Handles the properties common to logic gates with two inputs
- *  Specifically, all two-input gates have two input wires, in1 an in2.
- *  @see AndGate
- *  @see OrGate
- *  @see LogicGate
- */
-abstract class TwoInputGate extends LogicGate {
-    // usage records for inputs
-    protected boolean in1used = false;
-    protected boolean in2used = false;
-
-    // Boolean values of inputs
-    protected boolean in1 = false;
-    protected boolean in2 = false;
-
-    /** The constructor used only from subclasses of TwoInputGate
-     *  @param name used to initialize the final field
-     *  @param delay used to initialize the final field
-     */
-    protected TwoInputGate( String name, float delay ) {
-	super( name, delay );
-    }
-
-    /** tell the gate that one of its input pins is in use
-     *  @param w the wire that is connected
-     *  @param pinName
-     *  @return corresponding pin number
-     */
-    public final int registerInput( Wire w, String pinName ) {
-	if ("in1".equals( pinName )) {
-	    if (in1used) Errors.warn(
-		"Multiple uses of input pin: " + name + " in1"
-	    );
-	    in1used = true;
-	    return 1;
-	} else if ("in2".equals( pinName )) {
-	    if (in2used) Errors.warn(
-		"Multiple uses of input pin: " + name + " in2"
-	    );
-	    in2used = true;
-	    return 2;
-	} else {
-	    Errors.warn( "Illegal input pin: " + name + " " + pinName );
-	    return -1;
-	}
-    }
-
-    /** get the name of the input pin, given its number
-     * @param pinNumber
-     * @return pinName
-     */
-    public final String inPinName( int pinNumber ) {
-	if (pinNumber == 1) return "in1";
-	if (pinNumber == 2) return "in2";
-	return "???";
-    }
-
-    /** check the sanity of this gate's connections
+    /** does this gate change its output without any input changing?
+     *  @return true for gates that start the simulation
      */
-    public final void checkSanity() {
-	if (!in1used) Errors.warn( "Unused input pin: " + name + " in1" );
-	if (!in2used) Errors.warn( "Unused input pin: " + name + " in2" );
+    boolean startsSimulation() {
+	return false;
     }
 
     // Simulation methods
 
-    /** update the output value of a gate based on its input values
-     *  This is called from inputChangeEvent to delegate the response of the
-     *  logic gate to the input change to the actual gate instead of this
-     *  abstract class.
-     *  @param time the value is updated
-     */
-    abstract void updateValue( float time );
-
     /** simulate the change of one of this gate's inputs
      *  @param time the time when the input changes
      *  @param dstPin the pin that changes
-     *  @param v the new logic value
-     */
-    public void inputChangeEvent( float time, int dstPin, boolean v ) {
-	if (dstPin == 1) {
-	    in1 = v;
-	} else if (dstPin == 2) {
-	    in2 = v;
+     *  @param v the new logic value, see Value
+     */
+    public abstract void inputChangeEvent( float time, int dstPin, int v );
+
+    /** record a change of one of this gate's outputs, if it is probed
+     *  @param time the time when the output changes
+     *  @param pinName the output pin that changes
+     *  @param v the new logic value, see Value
+     *  Unprobed gates return at once, so tracing them costs nothing.
+     */
+    protected final void trace( float time, String pinName, int v ) {
+	if (!probed) return;
+	changes = changes + 1;
+	if (Probes.summary) return;
+	if (Traces.binary != null) {
+	    Traces.record( time, number, v );
+	    return;
 	}
-	updateValue( time );
-    }
-
-} // abstract class TwoInputGate
-
-/** Handles the properties specific to and gates.
- *  @see TwoInputGate
- *  @see LogicGate
- */
-final class AndGate extends TwoInputGate {
-
-    /** The constructor used only from within class Gate
-     *  @param name used to initialize the final field
-     *  @param delay used to initialize the final field
-     */
-    public AndGate( String name, float delay ) {
-	super( name, delay );
+	circuit.out.println(
+	    "At " + time + " " + toString() +
+	    " " + pinName + " " + " changes to " + Value.name( v )
+	);
     }
 
-    /** reconstruct the textual description of this gate
-     *  @return the textual description
+    /** pack this gate's simulation state into the bits of an int
+     *  Two gates in the same state give the same bits, so that a repeated
+     *  state of the whole circuit can be recognized.
+     *  @return the state
      */
-    public String toString() {
-	return "gate " + name + " and " + delay;
-    }
-
-    // Simulation methods
-
-    /** update the output value of a gate based on its input values
-     *  @param t time the value is updated
-     */
-    void updateValue( float t ) {
-	boolean newVal = in1 & in2;
-	if (newVal != value) {
-	    value = newVal;
-	    Simulator.schedule(
-		new Simulator.Event( t
-			+ ( delay * 0.95f )
-			+ PRNG.randomFloat( delay * 0.1f )
-		) {
-		    void trigger() { outputChangeEvent( time ); }
-		}
-	    );
-	}
-    }
-} // class AndGate
-
-/** Handles the properties specific to or gates.
- *  @see TwoInputGate
- *  @see LogicGate
- */
-final class OrGate extends TwoInputGate {
+    abstract int state();
 
-    /** The constructor used only from within class Gate
-     *  @param name used to initialize the final field
-     *  @param delay used to initialize the final field
+    /** get the name of this gate's primary output, the one that is traced
+     *  @return the pin name
      */
-    public OrGate( String name, float delay ) {
-	super( name, delay );
-    }
+    abstract String outputPin();
 
-    /** reconstruct the textual description of this gate
-     *  @return the textual description
+    /** get the most recent value of this gate's primary output
+     *  @return the value, see Value
      */
-    public String toString() {
-	return "gate " + name + " or " + delay;
-    }
+    abstract int outputValue();
 
-    // Simulation methods
-
-    /** update the output value of a gate based on its input values
-     *  @param time the value is updated
-     */
-    void updateValue( float t ) {
-	boolean newVal = in1 | in2;
-	if (newVal != value) {
-	    value = newVal;
-	    Simulator.schedule(
-		new Simulator.Event( t
-			+ (delay * 0.95f)
-			+ PRNG.randomFloat( delay * 0.1f )
-		) {
-		    void trigger() { outputChangeEvent( time ); }
-		}
-	    );
-	}
-    }
-
-} // class OrGate
+} // abstract class Gate
 
 /** Handles the properties specific to not gates.
  *  @see LogicGate
@@ -407,6 +344,9 @@ final class NotGate extends LogicGate {
     // usage records for inputs
     private boolean inUsed = false;
 
+    // the first wire into the input, see Wire.share
+    private Wire inWire;
+
     /** The constructor used only from within class Gate
      *  @param name used to initialize the final field
      *  @param delay used to initialize the final field
@@ -422,9 +362,13 @@ final class NotGate extends LogicGate {
      */
     public int registerInput( Wire w, String pinName ) {
 	if ("in".equals( pinName )) {
-	    if (inUsed) Errors.warn(
-		"Multiple uses of input pin: " + name + " in"
-	    );
+	    if (!inUsed) {
+		inWire = w;
+	    } else if (Value.fourState) {
+		inWire.share( w );
+	    } else {
+		Errors.warn( "Multiple uses of input pin: " + name + " in" );
+	    }
 	    inUsed = true;
 	    return 0;
 	} else {
@@ -448,12 +392,11 @@ final class NotGate extends LogicGate {
 	if (!inUsed) Errors.warn( "Unused input pin: " + name + " in" );
 
 	// this is a good time to launch the simulation
-	value = true;
-	Simulator.schedule(
-	    new Simulator.Event( delay ) {
-		void trigger() { outputChangeEvent( time ); }
-	    }
-	);
+	// in four-state simulation, the input is X, so the output stays X
+	value = (byte)Value.not( Value.initial() );
+	if (local && (value != outputValue())) {
+	    simulator.schedule( delay, outputAction, value );
+	}
     }
 
     /** reconstruct the textual description of this gate
@@ -463,6 +406,14 @@ final class NotGate extends LogicGate {
 	return "gate " + name + " not " + delay;
     }
 
+    String kind() {
+	return "not";
+    }
+
+    boolean startsSimulation() {
+	return true;
+    }
+
     // Simulation methods
 
     /** simulate the change of one of this gate's inputs
@@ -470,15 +421,12 @@ final class NotGate extends LogicGate {
      *  @param dstPin the pin that changes
      *  @param v the new logic value
      */
-    public void inputChangeEvent( float t, int dstPin, boolean v ) {
-	value = !v;
-	Simulator.schedule(
-	    new Simulator.Event( t
-		+ (delay * 0.95f)
-		+ PRNG.randomFloat( delay * 0.1f )
-	    ) {
-		void trigger() { outputChangeEvent( time ); }
-	    }
+    public void inputChangeEvent( float t, int dstPin, int v ) {
+	evaluations = evaluations + 1;
+	value = (byte)Value.not( v );
+	simulator.schedule(
+	    outputTime( t ),
+	    outputAction, value
 	);
     }
 
@@ -488,8 +436,14 @@ final class NotGate extends LogicGate {
  */
 final class ConstGate extends Gate {
     // set of all wires out of this gate
-    private LinkedList <Wire> outgoingTrue = new LinkedList <Wire> ();
-    private LinkedList <Wire> outgoingFalse = new LinkedList <Wire> ();
+    private final Wire.Fanout outgoingTrue = new Wire.Fanout();
+    private final Wire.Fanout outgoingFalse = new Wire.Fanout();
+
+    // has the true output changed to true yet?
+    private boolean fired = false;
+
+    // the action that simulates the output change of this gate
+    private final int outputAction;
 
     /** The constructor used only from within class Gate
      *  @param name used to initialize the final field
@@ -497,6 +451,22 @@ final class ConstGate extends Gate {
      */
     public ConstGate( String name, float delay ) {
 	super( name, delay );
+	outputAction = Simulator.registerValue(
+	    (float t, int v)->outputChangeEvent( t )
+	);
+    }
+
+    /** The constructor for a gate that takes the place of a logic gate
+     *  @param old the gate replaced, whose name, delay and action this takes
+     *  The old gate's action becomes this gate's, so the events of this gate
+     *  keep their place among others at the same time.
+     */
+    ConstGate( LogicGate old ) {
+	super( old.name, old.delay );
+	outputAction = old.outputAction;
+	Simulator.reregisterValue(
+	    outputAction, (float t, int v)->outputChangeEvent( t )
+	);
     }
 
     /** tell the gate that one of its input pins is in use
@@ -527,6 +497,10 @@ final class ConstGate extends Gate {
 	}
     }
 
+    void unregisterOutput( Wire w ) {
+	if (!outgoingTrue.remove( w )) outgoingFalse.remove( w );
+    }
+
     /** get the name of the input pin, given its number
      * @param pinNumber
      * @return pinName
@@ -545,17 +519,28 @@ final class ConstGate extends Gate {
 	return "???";
     }
 
+    String outputPin() {
+	return "true";
+    }
+
+    int state() {
+	return fired ? 1 : 0;
+    }
+
+    /** get the most recent value of this gate's true output
+     *  @return the value
+     */
+    int outputValue() {
+	return fired ? Value.ONE : Value.initial();
+    }
+
     /** check the sanity of this gate's connections
      */
     public void checkSanity() {
 	// no sanity check; there are no input pins to check
 
 	// this is a good time to launch the simulation
-	Simulator.schedule(
-	    new Simulator.Event( delay ) {
-		void trigger() { outputChangeEvent( time ); }
-	    }
-	);
+	if (local) simulator.schedule( delay, outputAction, Value.ONE );
     }
 
     /** reconstruct the textual description of this gate
@@ -565,6 +550,14 @@ final class ConstGate extends Gate {
 	return "gate " + name + " const " + delay;
     }
 
+    String kind() {
+	return "const";
+    }
+
+    boolean startsSimulation() {
+	return true;
+    }
+
     // Simulation methods
 
     /** simulate the change of one of this gate's inputs
@@ -572,16 +565,16 @@ final class ConstGate extends Gate {
      *  @param dstPin the pin that changes
      *  @param v the new logic value
      */
-    public void inputChangeEvent( float time, int dstPin, boolean v ) {
+    public void inputChangeEvent( float time, int dstPin, int v ) {
 	Errors.fatal( "Input should never change: " + toString() );
     }
 
     private void outputChangeEvent( float time ) {
-	System.out.println(
-	    "At " + time + " " + toString() + " true " + " changes to true"
-	);
-	for (Wire w: outgoingTrue) {
-	    w.inputChangeEvent( time, true );
+	fired = true;
+	trace( time, "true", Value.ONE );
+	outgoingTrue.send( time, Value.ONE );
+	if (Value.fourState) { // the false output was X until now
+	    outgoingFalse.send( time, Value.ZERO );
 	}
     }
 
@@ -0,0 +1,190 @@
+/* Inbox.java
+ * Takes input changes from other threads into a running simulation
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/** An inbox lets other threads change input gates while Simulator.run
+ *  is running.  Each producer injects changes in time order, and each
+ *  change is a promise that the producer will inject nothing earlier; a
+ *  producer can also promise that without a change, with advance, or
+ *  promise that it is done, with close.  The least of these promises is
+ *  the safe time: the simulation only triggers events before it, so no
+ *  injected change is ever in the simulated past, and when there is
+ *  nothing safe to do, the simulation waits for the producers.
+ *  Producers never wait.  A change is pushed on a lock-free stack with
+ *  a compare-and-set, and the simulation takes the whole stack at once,
+ *  sorts the batch by time and schedules it.
+ *  When a batch is taken depends on thread timing, so on the Java heap,
+ *  where events at the same time are triggered in no particular order,
+ *  changes at the same time may come out in another order than from a
+ *  stimulus file; off-heap they are ordered by registration number, and
+ *  come out the same.
+ *  Errors are counted by thread, so producers don't report their own;
+ *  they pass them on with warn, and the simulation reports them.
+ *  @see Simulator
+ *  @see Stimulus
+ */
+class Inbox {
+    // how long the simulation waits for producers before looking again
+    private static final long WAIT = 1000000; // nanoseconds
+
+    // one injected change, on the stack of those not yet taken
+    private static final class Change {
+	final float time;
+	final InputGate gate;
+	final int value;            // see Value
+	Change next;                // the change pushed before this one
+
+	Change( float time, InputGate gate, int value ) {
+	    this.time = time;
+	    this.gate = gate;
+	    this.value = value;
+	}
+    }
+
+    /** A producer injects changes into the inbox from one thread
+     */
+    final class Producer {
+	// nothing will be injected before this; infinity once closed
+	private volatile float promise = Float.NEGATIVE_INFINITY;
+
+	private Producer() {}
+
+	/** inject the change of an input gate
+	 *  @param time when the input changes, no earlier than this
+	 *  producer's earlier changes and advances
+	 *  @param gate the input gate
+	 *  @param v the new value, see Value
+	 */
+	void inject( float time, InputGate gate, int v ) {
+	    if (!(time >= promise)) {
+		warn(
+		    "Injected out of order: " + time + " " + gate.name + " "
+		    + Value.name( v )
+		);
+		return;
+	    }
+	    Change c = new Change( time, gate, v );
+	    do {
+		c.next = head.get();
+	    } while (!head.compareAndSet( c.next, c ));
+	    promise = time; // only after the push, see ready
+	    LockSupport.unpark( consumer );
+	}
+
+	/** promise to inject nothing before time
+	 *  @param time the time
+	 */
+	void advance( float time ) {
+	    if (time > promise) promise = time;
+	    LockSupport.unpark( consumer );
+	}
+
+	/** promise to inject nothing more
+	 */
+	void close() {
+	    advance( Float.POSITIVE_INFINITY );
+	}
+
+	/** report an error in the simulation's thread, where it is counted
+	 *  It is reported before any change this producer injects later.
+	 *  @param message the message, as for Errors.warn
+	 */
+	void warn( String message ) {
+	    warnings.add( message );
+	    LockSupport.unpark( consumer );
+	}
+    }
+
+    // the changes not yet taken, the latest pushed first
+    private final AtomicReference <Change> head
+	= new AtomicReference <Change> ();
+
+    // the errors reported by producers and not yet by the simulation
+    private final ConcurrentLinkedQueue <String> warnings
+	= new ConcurrentLinkedQueue <String> ();
+
+    private final ArrayList <Producer> producers = new ArrayList <Producer> ();
+
+    // the thread running the simulation, and its simulator
+    private final Thread consumer = Thread.currentThread();
+    private final Simulator simulator = Simulator.current();
+
+    // the least promise, when the changes were last taken
+    private float safe = Float.NEGATIVE_INFINITY;
+
+    /** construct an inbox for the simulation this thread will run
+     */
+    Inbox() {}
+
+    /** add a producer
+     *  This must be called in the simulation's thread before it runs.
+     *  @return the producer, for use in any one thread
+     */
+    Producer producer() {
+	Producer p = new Producer();
+	producers.add( p );
+	return p;
+    }
+
+    /** take the changes injected so far and decide whether the simulation
+     *  can go on to its next event; if it can't, wait a while first
+     *  @param time the time of the next pending event, infinity if none
+     *  @param until the time when the simulation stops
+     *  @return true if the simulation can go on, false to ask again
+     */
+    boolean ready( float time, float until ) {
+	// everything not yet taken was promised no earlier than safe
+	if ((time < safe) && (head.get() == null)) return true;
+
+	// read the promises first, so every change made before them is taken
+	float promised = Float.POSITIVE_INFINITY;
+	for (Producer p: producers) promised = Math.min( promised, p.promise );
+	safe = promised;
+	if (take()) return false; // the next event may have changed
+
+	if ((safe == Float.POSITIVE_INFINITY) || (time < safe)
+	||  (until < safe)) return true;
+	LockSupport.parkNanos( WAIT );
+	return false;
+    }
+
+    // report the errors passed on so far, then schedule all the changes
+    // on the stack, return false if none
+    private boolean take() {
+	for (String m = warnings.poll(); m != null; m = warnings.poll()) {
+	    Errors.warn( m );
+	}
+	Change c = head.getAndSet( null );
+	if (c == null) return false;
+	ArrayList <Change> batch = new ArrayList <Change> ();
+	for (; c != null; c = c.next) batch.add( c );
+	Change[] changes = batch.toArray( new Change[0] );
+
+	// oldest first, then in time order, the order of injection kept
+	for (int i = 0, j = changes.length - 1; i < j; i++, j--) {
+	    Change t = changes[i];
+	    changes[i] = changes[j];
+	    changes[j] = t;
+	}
+	Arrays.sort(
+	    changes, (Change a, Change b)->Float.compare( a.time, b.time )
+	);
+	for (Change i: changes) {
+	    if (i.gate.local) simulator.schedule(
+		i.time, i.gate.stimulusAction, i.value
+	    );
+	}
+	return true;
+    }
+
+} // class Inbox
@@ -0,0 +1,89 @@
+/* InputGate.java
+ * Representation of input gates, driven by the stimulus
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+/** Handles the properties specific to input gates.
+ *  Input gates have no input pins; their values come from a stimulus file.
+ *  @see LogicGate
+ *  @see Stimulus
+ */
+final class InputGate extends LogicGate {
+
+    // the action that applies a value from the stimulus
+    final int stimulusAction
+	= Simulator.registerValue( (float t, int v)->stimulusEvent( t, v ) );
+
+    /** The constructor used only from within class Gate
+     *  @param name used to initialize the final field
+     *  @param delay used to initialize the final field
+     */
+    public InputGate( String name, float delay ) {
+	super( name, delay );
+    }
+
+    /** tell the gate that one of its input pins is in use
+     *  @param w the wire that is connected
+     *  @param pinName
+     *  @return corresponding pin number
+     */
+    public int registerInput( Wire w, String pinName ) {
+	Errors.warn( "Illegal input pin: " + name + " " + pinName );
+	return -1;
+    }
+
+    /** get the name of the input pin, given its number
+     * @param pinNumber
+     * @return pinName
+     */
+    public String inPinName( int pinNumber ) {
+	return "???";
+    }
+
+    /** check the sanity of this gate's connections
+     */
+    public void checkSanity() {
+	// no sanity check; there are no input pins to check
+	// the stimulus, not this gate, launches the simulation
+    }
+
+    /** reconstruct the textual description of this gate
+     *  @return the textual description
+     */
+    public String toString() {
+	return "gate " + name + " input " + delay;
+    }
+
+    String kind() {
+	return "input";
+    }
+
+    boolean startsSimulation() {
+	return true;
+    }
+
+    // Simulation methods
+
+    /** simulate the change of one of this gate's inputs
+     *  @param time the time when the input changes
+     *  @param dstPin the pin that changes
+     *  @param v the new logic value
+     */
+    public void inputChangeEvent( float time, int dstPin, int v ) {
+	Errors.fatal( "Input should never change: " + toString() );
+    }
+
+    /** simulate a value applied to this gate by the stimulus
+     *  @param t the time when the value is applied
+     *  @param v the new logic value
+     *  the output follows after exactly the gate's delay
+     */
+    private void stimulusEvent( float t, int v ) {
+	value = (byte)v;
+	simulator.schedule( t + delay, outputAction, v );
+    }
+
+} // class InputGate
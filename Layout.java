@@ -0,0 +1,277 @@
+/* Layout.java
+ * Renumbers the gates of a logic circuit so neighbors are near in memory
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.util.Arrays;
+
+/** Lays the circuit of this thread out in memory by graph locality.
+ *  Gates are read in file order, so a gate and the gates it drives may be
+ *  far apart in memory, and most of the time of a big simulation goes to
+ *  cache misses.  This pass orders the gates by reverse Cuthill-McKee:
+ *  breadth-first from a gate at the edge of the circuit, neighbors of
+ *  least degree first, the whole order then reversed, so gates joined by
+ *  wires get nearby numbers.  The circuit is then built again in that
+ *  order, gates first and then wires by source and destination, so gate
+ *  objects, fan-out arrays and action numbers all follow it; the result
+ *  is just as if the circuit description had been written in that order.
+ *  Events at the same time may then be triggered in another order, which
+ *  can decide races between them, just as writing the file in another
+ *  order can.
+ *  Numbers also decide the partitions of a distributed simulation, which
+ *  are runs of consecutive gates, so fewer wires cross between processes.
+ *  @see Logic
+ *  @see Distributed
+ */
+class Layout {
+    // the cut is counted over blocks of this many consecutive gates
+    private static final int BLOCK = 64;
+
+    // a gate is assumed to be in cache when its number is this close to
+    // the gate that drives it; a gate, its wires and their fan-out
+    // arrays take about 64 bytes each, so this is about a 32K cache
+    private static final int CACHE = 512;
+
+    // how many breadth-first searches to spend looking for an edge
+    private static final int SEARCHES = 8;
+
+    private final Gate[] gates;      // by old number
+    private final int[] source;      // of each wire, by old number
+    private final int[] destination;
+
+    // the neighbors of gate g are adj[adjStart[g]..adjStart[g+1]-1]
+    private final int[] adjStart;
+    private final int[] adj;
+
+    // for breadth-first search, see search
+    private final int[] mark;        // gates reached by the latest search
+    private int stamp = 0;
+    private final int[] queue;
+    private int far;                 // a gate the latest search reached last
+
+    private Layout( Gate[] gates ) {
+	this.gates = gates;
+	int n = gates.length;
+	int m = Logic.wires().size();
+	source = new int[m];
+	destination = new int[m];
+	adjStart = new int[n + 1];
+	int i = 0;
+	for (Wire w: Logic.wires()) {
+	    source[i] = w.source().number;
+	    destination[i] = w.destination().number;
+	    adjStart[source[i] + 1]++;
+	    adjStart[destination[i] + 1]++;
+	    i = i + 1;
+	}
+	for (int g = 0; g < n; g++) adjStart[g + 1] += adjStart[g];
+	adj = new int[adjStart[n]];
+	int[] next = Arrays.copyOf( adjStart, n );
+	for (int e = 0; e < m; e++) {
+	    adj[next[source[e]]++] = destination[e];
+	    adj[next[destination[e]]++] = source[e];
+	}
+	mark = new int[n];
+	queue = new int[n];
+    }
+
+    /** lay out the circuit of this thread and build it again in that order
+     *  The circuit must have been read without errors, and no events may
+     *  have been scheduled yet.  The gates must be numbered again before
+     *  they are simulated.
+     *  @param gates the gates of the circuit, by number
+     *  @return a report of the cut and the estimated miss rate, before and
+     *  after
+     */
+    static String run( Gate[] gates ) {
+	Layout l = new Layout( gates );
+	int[] order = l.order();
+	int[] rank = new int[gates.length];
+	for (int i = 0; i < order.length; i++) rank[order[i]] = i;
+	int[] identity = new int[gates.length];
+	for (int i = 0; i < identity.length; i++) identity[i] = i;
+	String report = "Layout: mean wire span " + l.span( identity )
+	    + " before, " + l.span( rank ) + " after; "
+	    + l.cut( identity ) + " of " + l.source.length
+	    + " wires cross blocks of " + BLOCK + " gates before, "
+	    + l.cut( rank ) + " after; estimated miss rate "
+	    + l.missRate( identity ) + " before, " + l.missRate( rank )
+	    + " after";
+	l.rebuild( order, rank );
+	return report;
+    }
+
+    // the gates in reverse Cuthill-McKee order, by old number
+    private int[] order() {
+	int n = gates.length;
+	int[] order = new int[n];
+	boolean[] placed = new boolean[n];
+	int count = 0;
+	for (int s = 0; s < n; s++) {
+	    if (placed[s]) continue;
+
+	    // breadth-first through the component of s, from its edge
+	    int head = count;
+	    int root = edge( s );
+	    order[count++] = root;
+	    placed[root] = true;
+	    while (head < count) {
+		int g = order[head++];
+		int first = count;
+		for (int e = adjStart[g]; e < adjStart[g + 1]; e++) {
+		    int d = adj[e];
+		    if (!placed[d]) {
+			placed[d] = true;
+			order[count++] = d;
+		    }
+		}
+		byDegree( order, first, count );
+	    }
+	}
+	for (int i = 0, j = n - 1; i < j; i++, j--) {
+	    int t = order[i];
+	    order[i] = order[j];
+	    order[j] = t;
+	}
+	return order;
+    }
+
+    private int degree( int g ) {
+	return adjStart[g + 1] - adjStart[g];
+    }
+
+    // sort order[from..to-1] by degree, ties by number
+    private void byDegree( int[] order, int from, int to ) {
+	if (to - from < 2) return;
+	long[] keys = new long[to - from];
+	for (int i = from; i < to; i++) {
+	    keys[i - from] = ((long)degree( order[i] ) << 32) | order[i];
+	}
+	Arrays.sort( keys );
+	for (int i = from; i < to; i++) order[i] = (int)keys[i - from];
+    }
+
+    // find a gate at the edge of the component of s, one that is far from
+    // the others, by searching again from the far side until it's no farther
+    private int edge( int s ) {
+	int root = s;
+	int depth = -1;
+	for (int i = 0; i < SEARCHES; i++) {
+	    int d = search( root );
+	    if (d <= depth) break;
+	    depth = d;
+	    root = far;
+	}
+	return root;
+    }
+
+    // search breadth-first from s; return the depth, and set far to the
+    // gate of least degree among the farthest ones
+    private int search( int s ) {
+	stamp = stamp + 1;
+	mark[s] = stamp;
+	queue[0] = s;
+	int head = 0;
+	int tail = 1;
+	int level = 0;   // where the farthest gates so far start in queue
+	int depth = 0;
+	for (;;) {
+	    int end = tail;
+	    for (; head < end; head++) {
+		int g = queue[head];
+		for (int e = adjStart[g]; e < adjStart[g + 1]; e++) {
+		    int d = adj[e];
+		    if (mark[d] != stamp) {
+			mark[d] = stamp;
+			queue[tail++] = d;
+		    }
+		}
+	    }
+	    if (tail == end) break;
+	    level = end;
+	    depth = depth + 1;
+	}
+	far = queue[level];
+	for (int i = level; i < tail; i++) {
+	    int g = queue[i];
+	    if ((degree( g ) < degree( far ))
+	    ||  ((degree( g ) == degree( far )) && (g < far))) far = g;
+	}
+	return depth;
+    }
+
+    // the mean distance in number between the ends of a wire
+    private String span( int[] number ) {
+	long sum = 0;
+	for (int e = 0; e < source.length; e++) {
+	    sum = sum + Math.abs( number[source[e]] - number[destination[e]] );
+	}
+	return String.format(
+	    "%.1f", (double)sum / Math.max( 1, source.length )
+	);
+    }
+
+    // how many wires join different blocks
+    private int cut( int[] number ) {
+	int c = 0;
+	for (int e = 0; e < source.length; e++) {
+	    if (number[source[e]] / BLOCK != number[destination[e]] / BLOCK) {
+		c = c + 1;
+	    }
+	}
+	return c;
+    }
+
+    // the share of wires whose destination is not near their source
+    private String missRate( int[] number ) {
+	int misses = 0;
+	for (int e = 0; e < source.length; e++) {
+	    if (Math.abs( number[source[e]] - number[destination[e]] ) >= CACHE) {
+		misses = misses + 1;
+	    }
+	}
+	return String.format(
+	    "%.1f%%", 100.0 * misses / Math.max( 1, source.length )
+	);
+    }
+
+    // build the circuit of this thread again, gates in order
+    private void rebuild( int[] order, int[] rank ) {
+	Wire[] wires = Logic.wires().toArray( new Wire[0] );
+	String[] srcPin = new String[wires.length];
+	String[] dstPin = new String[wires.length];
+	float[] delay = new float[wires.length];
+	Integer[] sorted = new Integer[wires.length];
+	for (int e = 0; e < wires.length; e++) {
+	    srcPin[e] = wires[e].srcPinName();
+	    dstPin[e] = wires[e].dstPinName();
+	    delay[e] = wires[e].delay();
+	    sorted[e] = e;
+	}
+	// by source, then destination, then as they were
+	Arrays.sort( sorted, (Integer a, Integer b)->
+	    (rank[source[a]] != rank[source[b]])
+		? Integer.compare( rank[source[a]], rank[source[b]] )
+		: Integer.compare( rank[destination[a]], rank[destination[b]] )
+	);
+
+	Simulator.forget();
+	Logic.forget();
+	Gate[] copy = new Gate[gates.length];
+	for (int i = 0; i < order.length; i++) {
+	    Gate g = gates[order[i]];
+	    copy[i] = Gate.make( g.name, g.kind(), g.delay );
+	    Logic.define( copy[i] );
+	}
+	for (int e: sorted) {
+	    Logic.wires().add( new Wire(
+		copy[rank[source[e]]], srcPin[e],
+		copy[rank[destination[e]]], dstPin[e], delay[e]
+	    ) );
+	}
+    }
+
+} // class Layout
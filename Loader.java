@@ -0,0 +1,251 @@
+/* Loader.java
+ * Reads the description of a logic circuit using several threads
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/** Reads a circuit description in three phases, the first two in parallel.
+ *  First, the file is split into chunks at line ends, and the lines of
+ *  each chunk are scanned, each by the same code that Logic.readCircuit
+ *  uses, but with error messages held back.  Chunks are mapped from the
+ *  file and decoded only when they are scanned, so the file is never held
+ *  in memory all at once, and it may be bigger than a String can be.
+ *  Second, the gate lines are entered in a table of names, where each
+ *  name goes with the first line that defines a gate of a known kind, and
+ *  then the gate names on each wire line are looked up; a wire can only
+ *  use a gate defined on an earlier line.  Third, in file order, the
+ *  held-back messages are reported and the gates and wires are built, with
+ *  the same checks and messages as Logic.readCircuit.  Building registers
+ *  simulation actions, so it must go in file order, but it is quick;
+ *  scanning, the slow part, is what is divided among threads.
+ *  @see Logic
+ */
+class Loader {
+    // the kinds of lines
+    private static final int OTHER = 0;
+    private static final int GATE = 1;
+    private static final int WIRE = 2;
+    private static final int PROBE = 3;
+
+    // the most bytes in a chunk, unless one line is longer
+    private static final long CHUNK = 1 << 26;
+
+    // one line of the description, scanned
+    private static class Line {
+	int kind = OTHER;
+	Gate.Text gate;             // if kind is GATE, null if it had errors
+	Wire.Text wire;             // if kind is WIRE, null if it had errors
+	String probe;               // if kind is PROBE, null if it had errors
+	String messages;            // error messages, held back
+	int source = -1;            // for a wire, the lines defining its gates
+	int destination = -1;
+    }
+
+    /** read a circuit description into this thread's circuit
+     *  @param f the file holding the description
+     *  @param threads how many threads to use
+     *  @throws IOException if the file cannot be read
+     */
+    static void read( File f, int threads ) throws IOException {
+	// split the file at line ends, into a few chunks per thread
+	ArrayList <MappedByteBuffer> chunks
+	    = new ArrayList <MappedByteBuffer> ();
+	try (FileChannel file = FileChannel.open( f.toPath() )) {
+	    long size = file.size();
+	    long pieces = Math.max( threads * 4L, size / CHUNK + 1 );
+	    long start = 0;
+	    for (long i = 1; (i <= pieces) && (start < size); i++) {
+		long end = Math.max( size * i / pieces, start );
+		end = lineEnd( file, end );
+		chunks.add( file.map(
+		    FileChannel.MapMode.READ_ONLY, start, end - start
+		) );
+		start = end;
+	    }
+	}
+	Charset charset = Charset.defaultCharset();
+
+	ForkJoinPool pool = new ForkJoinPool( threads );
+	Line[] lines;
+	try {
+	    // phase one, scan the chunks
+	    Line[][] scanned = pool.submit(
+		()->chunks.parallelStream().map(
+		    (MappedByteBuffer c)->scan( charset.decode( c ) )
+		).toArray( Line[][]::new )
+	    ).get();
+	    int count = 0;
+	    for (Line[] s: scanned) count = count + s.length;
+	    lines = new Line[count];
+	    count = 0;
+	    for (Line[] s: scanned) {
+		System.arraycopy( s, 0, lines, count, s.length );
+		count = count + s.length;
+	    }
+
+	    // phase two, find the first good definition of each gate name
+	    ConcurrentHashMap <String,Integer> names
+		= new ConcurrentHashMap <String,Integer> ();
+	    pool.submit(
+		()->IntStream.range( 0, lines.length ).parallel().forEach(
+		    (int i)->{
+			Gate.Text g = lines[i].gate;
+			if ((g != null) && Gate.isKind( g.kind )) {
+			    names.merge( g.name, i, Math::min );
+			}
+		    }
+		)
+	    ).get();
+
+	    // and look up the gates of each wire among the earlier lines
+	    pool.submit(
+		()->IntStream.range( 0, lines.length ).parallel().forEach(
+		    (int i)->{
+			Wire.Text w = lines[i].wire;
+			if (w != null) {
+			    lines[i].source = lookup( names, w.sourceName, i );
+			    lines[i].destination = lookup( names, w.dstName, i );
+			}
+		    }
+		)
+	    ).get();
+	} catch (InterruptedException e) {
+	    Errors.fatal( "Interrupted while reading" );
+	    return; // never reached
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof RuntimeException) {
+		throw (RuntimeException)e.getCause();
+	    }
+	    throw new RuntimeException( e.getCause() );
+	} finally {
+	    pool.shutdown();
+	}
+
+	// phase three, build the circuit in file order
+	Gate[] gates = new Gate[lines.length];
+	for (int i = 0; i < lines.length; i++) {
+	    Line l = lines[i];
+	    report( l.messages );
+	    if (l.gate != null) {
+		try {
+		    gates[i] = Gate.build( l.gate );
+		    Logic.define( gates[i] );
+		} catch (Gate.ConstructorFailure e) {
+		    // do nothing, build already reported the error
+		}
+	    } else if (l.wire != null) {
+		try {
+		    Logic.wires().add( new Wire(
+			l.wire,
+			(l.source < 0) ? null : gates[l.source],
+			(l.destination < 0) ? null : gates[l.destination]
+		    ) );
+		} catch (Wire.ConstructorFailure e) {
+		    // do nothing, the constructor already reported the error
+		}
+	    } else if (l.probe != null) {
+		Logic.probes().add( l.probe );
+	    }
+	}
+    }
+
+    // the line before line i that defines name, or -1 if none
+    private static int lookup(
+	ConcurrentHashMap <String,Integer> names, String name, int i
+    ) {
+	Integer d = names.get( name );
+	return ((d == null) || (d > i)) ? -1 : d;
+    }
+
+    // the position just after the first line end at or after pos in file,
+    // or the end of the file if none
+    private static long lineEnd( FileChannel file, long pos )
+	throws IOException
+    {
+	ByteBuffer b = ByteBuffer.allocate( 4096 );
+	long size = file.size();
+	while (pos < size) {
+	    b.clear();
+	    int n = file.read( b, pos );
+	    if (n < 0) break;
+	    for (int i = 0; i < n; i++) {
+		if (b.get( i ) == '\n') return pos + i + 1;
+	    }
+	    pos = pos + n;
+	}
+	return size;
+    }
+
+    // scan the lines of one chunk, holding back their error messages
+    private static Line[] scan( CharBuffer chunk ) {
+	ByteArrayOutputStream held = new ByteArrayOutputStream();
+	Errors.redirect( new PrintStream( held ) );
+	ArrayList <Line> lines = new ArrayList <Line> ();
+	Scanner sc = new Scanner( chunk );
+	while (sc.hasNext()) {
+	    Line l = new Line();
+	    String command = sc.next();
+	    if ("gate".equals( command )) {
+		l.kind = GATE;
+		try {
+		    l.gate = Gate.scan( sc );
+		} catch (Gate.ConstructorFailure e) {
+		    // do nothing, the scanner already reported the error
+		}
+	    } else if ("wire".equals( command )) {
+		l.kind = WIRE;
+		try {
+		    l.wire = Wire.scan( sc );
+		} catch (Wire.ConstructorFailure e) {
+		    // do nothing, the scanner already reported the error
+		}
+	    } else if ("probe".equals( command )) {
+		l.kind = PROBE;
+		try {
+		    String p = ScanSupport.nextGlob( sc, ()->"probe ???" );
+		    ScanSupport.lineEnd( sc, ()->"probe " + p );
+		    l.probe = p;
+		} catch (ScanSupport.NotFound e) {
+		    // do nothing, the scanner already reported the error
+		}
+	    } else if ("--".equals( command )) {
+		sc.nextLine();
+	    } else {
+		Errors.warn( "unknown command: " + command );
+		sc.nextLine();
+	    }
+	    l.messages = (held.size() == 0) ? null : held.toString();
+	    held.reset();
+	    lines.add( l );
+	}
+	Errors.redirect( null );
+	return lines.toArray( new Line[0] );
+    }
+
+    // report messages that were held back, in order
+    private static void report( String messages ) {
+	if (messages == null) return;
+	for (String m: messages.split( "\n" )) {
+	    Errors.warn( m.substring( "Logic: ".length() ) );
+	}
+    }
+
+} // class Loader
@@ -7,9 +7,12 @@
  * Bug notices in the code indicate unsolved problems
  */
 
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.Scanner;
 
 /** The main class, orchestrates the building and simulation of a logic circuit.
@@ -25,34 +28,131 @@ import java.util.Scanner;
  */
 public class Logic {
 
-    // the sets of all wires and all gates
-    private static LinkedList <Wire> wires
-	= new LinkedList <Wire> ();
-    private static LinkedList <Gate> gates
-	= new LinkedList <Gate> ();
+    // the circuit built and simulated by one thread
+    // each job the server runs has its own thread, and so its own circuit
+    static final class Circuit {
+	// the sets of all wires and all gates
+	final LinkedList <Wire> wires = new LinkedList <Wire> ();
+	final LinkedList <Gate> gates = new LinkedList <Gate> ();
 
-    /** Find a gate by textual name in the set gates
+	// the gates read so far, by name
+	final HashMap <String,Gate> names = new HashMap <String,Gate> ();
+
+	// name patterns of the gates to trace, from probe commands
+	final LinkedList <String> probes = new LinkedList <String> ();
+
+	// where simulation output goes
+	PrintStream out = System.out;
+    }
+
+    private static final ThreadLocal <Circuit> circuit
+	= ThreadLocal.withInitial( ()->new Circuit() );
+
+    // options from the command line, the same for every circuit
+    private static boolean offHeap = false;
+    private static File map = null;
+    private static File stimulus = null;
+    private static boolean live = false;
+    private static float window = 100.0f;
+    private static LinkedList <String> probes = new LinkedList <String> ();
+    private static boolean lint = false;
+    private static float faults = -1.0f; // fault simulation horizon, if >= 0
+    private static float until = Float.POSITIVE_INFINITY;
+    private static long budget = Long.MAX_VALUE;
+    private static boolean detect = false;
+    private static boolean optimize = false;
+    private static File trace = null;
+    private static boolean stats = false;
+    private static int memory = 0; // most pending events in memory, if > 0
+    private static boolean layout = false;
+
+    // set when simulating in several processes, see Distributed
+    private static Distributed distributed = null;
+
+    /** get the stream for simulation output of this thread
+     *  @return the stream
+     */
+    static PrintStream out() {
+	return circuit.get().out;
+    }
+
+    /** get this thread's circuit, for gates to trace their changes with
+     *  @return the circuit; its output may be redirected after it is got
+     */
+    static Circuit circuit() {
+	return circuit.get();
+    }
+
+    /** Send this thread's simulation output to a stream other than System.out
+     *  @param s the stream
+     */
+    static void redirect( PrintStream s ) {
+	circuit.get().out = s;
+    }
+
+    /** Forget this thread's circuit, so its next job starts afresh
+     */
+    static void reset() {
+	circuit.remove();
+    }
+
+    /** get the set of all gates in this thread's circuit
+     *  @return the gates, in the order they were defined
+     */
+    static LinkedList <Gate> gates() {
+	return circuit.get().gates;
+    }
+
+    /** get the set of all wires in this thread's circuit
+     *  @return the wires, in the order they were defined
+     */
+    static LinkedList <Wire> wires() {
+	return circuit.get().wires;
+    }
+
+    /** get the name patterns from this thread's circuit's probe commands
+     *  @return the patterns, in the order they were given
+     */
+    static LinkedList <String> probes() {
+	return circuit.get().probes;
+    }
+
+    /** Find a gate by textual name among the gates read so far
      *  @param s name of a gate
      *  @return the gate named s or null if none
      */
     public static Gate findGate( String s ) {
-	// quick and dirty implementation
-	for (Gate i: gates) {
-	    if (i.name.equals( s )) {
-		return i;
-	    }
-	}
-	return null;
+	return circuit.get().names.get( s );
+    }
+
+    /** Add a gate that has just been read to this thread's circuit
+     *  @param g the gate
+     */
+    static void define( Gate g ) {
+	Circuit c = circuit.get();
+	c.gates.add( g );
+	c.names.put( g.name, g );
+    }
+
+    /** Forget the gates and wires of this thread's circuit, so it can be
+     *  built again; the probe commands are kept
+     */
+    static void forget() {
+	Circuit c = circuit.get();
+	c.gates.clear();
+	c.wires.clear();
+	c.names.clear();
     }
 
     /** Initialize this logic circuit by scanning its description
      */
-    private static void readCircuit( Scanner sc ) {
+    static void readCircuit( Scanner sc ) {
+	LinkedList <Wire> wires = wires();
 	while (sc.hasNext()) {
 	    String command = sc.next();
 	    if ("gate".equals( command )) {
 		try {
-		    gates.add( Gate.factory( sc ) );
+		    define( Gate.factory( sc ) );
 		} catch (Gate.ConstructorFailure e) {
 		    // do nothing, the constructor already reported the error 
 		}
@@ -62,6 +162,14 @@ public class Logic {
 		} catch (Wire.ConstructorFailure e) {
 		    // do nothing, the constructor already reported the error 
 		}
+	    } else if ("probe".equals( command )) {
+		try {
+		    String p = ScanSupport.nextGlob( sc, ()->"probe ???" );
+		    probes().add( p );
+		    ScanSupport.lineEnd( sc, ()->"probe " + p );
+		} catch (ScanSupport.NotFound e) {
+		    // do nothing, the scanner already reported the error
+		}
 	    } else if ("--".equals( command )) {
 		sc.nextLine();
 	    } else {
@@ -71,37 +179,403 @@ public class Logic {
 	}
     }
 
+    /** Number the gates of this thread's circuit in order
+     *  @return the gates, indexed by number
+     */
+    static Gate[] numberGates() {
+	Gate[] g = gates().toArray( new Gate[0] );
+	for (int i = 0; i < g.length; i++) g[i].number = i;
+	return g;
+    }
+
     /** Check that a circuit is properly constructed
+     *  @param analysis the circuit, flattened for analysis
      */
-    private static void sanityCheck() {
-	for (Gate i: gates) i.checkSanity();
-	// Bug: Are there any sensible sanity checks on wires?
+    private static void sanityCheck( Analysis analysis ) {
+	for (Gate i: gates()) i.checkSanity();
+	// wires are checked as a whole, a loop without delay would stall
+	if (lint) {
+	    analysis.lint();
+	} else {
+	    analysis.zeroDelayCycles();
+	}
     }
 
     /** Print out the wire network to system.out
      */ 
     private static void printCircuit() {
-	for (Gate i: gates) {
-	    System.out.println( i.toString() );
+	for (Gate i: gates()) {
+	    out().println( i.toString() );
 	}
-	for (Wire r: wires) {
-	    System.out.println( r.toString() );
+	for (Wire r: wires()) {
+	    out().println( r.toString() );
 	}
     }
 
+    /** Simulate the circuit this thread has read
+     *  Options from the command line apply to every simulation.
+     */
+    static void simulate() {
+	try {
+	    if (offHeap) Simulator.useOffHeap( map, memory );
+	} catch (IOException e) {
+	    Errors.fatal( "Can't map the event file" );
+	}
+	LinkedList <String> globs = new LinkedList <String> ( probes );
+	globs.addAll( probes() );
+	Gate[] g = numberGates();
+	Probes p = new Probes( g, globs );
+	// diagnostics are about the circuit as written, not as laid out or
+	// optimized, so the analysis takes its copy of the circuit now
+	Analysis a = new Analysis( g, !globs.isEmpty() );
+	String arranged = null; // the report of the layout, if any
+	if (layout && (Errors.count() == 0)) {
+	    arranged = Layout.run( g );
+	    g = numberGates();
+	    p = new Probes( g, globs );
+	}
+	if (optimize && (faults < 0.0f) && (Errors.count() == 0)) {
+	    new Optimizer( g ).run();
+	    g = numberGates();
+	    p = new Probes( g, globs );
+	}
+	if (distributed != null) distributed.claim( g );
+	sanityCheck( a );
+	Stimulus s = null;
+	if ((stimulus != null) && (Errors.count() == 0)) try {
+	    s = new Stimulus( new Scanner( stimulus ), window );
+	} catch (FileNotFoundException e) {
+	    Errors.fatal( "Can't open the stimulus file" );
+	}
+	if (faults >= 0.0f) {
+	    if (Errors.count() == 0) {
+		new FaultSim( g, !globs.isEmpty(), s, faults ).run();
+	    }
+	    Simulator.close();
+	    return;
+	}
+	if (s != null) s.start();
+	if (live && (Errors.count() == 0)) {
+	    // records on standard input are read while the simulation runs
+	    Inbox inbox = new Inbox();
+	    Inbox.Producer producer = inbox.producer();
+	    Stimulus l = new Stimulus( new Scanner( System.in ), window );
+	    Thread reader = new Thread( ()->l.inject( producer ) );
+	    reader.setDaemon( true );
+	    Simulator.inbox( inbox );
+	    reader.start();
+	}
+	Simulator.limit( until, budget );
+	if (detect) Simulator.monitor( new Oscillation( g, until ) );
+	if (Errors.count() == 0) {
+	    if (distributed != null) {
+		distributed.run( g, p, until );
+	    } else {
+		if (trace != null) Traces.open( trace, g );
+		long start = System.nanoTime();
+		Simulator.run();
+		long elapsed = System.nanoTime() - start;
+		Traces.close();
+		if (Probes.summary) p.summarize();
+		if (stats) printStats( g, elapsed, arranged );
+	    }
+	}
+	Simulator.close();
+    }
+
+    // print counts of the work done by the simulation, and how fast
+    private static void printStats( Gate[] g, long elapsed, String arranged ) {
+	long evaluations = 0;
+	for (Gate i: g) evaluations = evaluations + i.evaluations;
+	if (arranged != null) out().println( arranged );
+	out().println(
+	    "Statistics: " + Simulator.scheduled() + " events scheduled, "
+	    + Simulator.triggered() + " triggered, "
+	    + evaluations + " gate evaluations"
+	);
+	out().println( String.format(
+	    "Throughput: %.0f events per second",
+	    Simulator.triggered() * 1.0e9 / Math.max( 1, elapsed )
+	) );
+    }
+
     /** Main program
+     *  usage: java Logic [options] filename
+     *  or:    java Logic [options] -server port
+     *  or:    java Logic [-tolerance time] -compare file file
+     *  options:
+     *  -offheap        keep pending events in memory outside the Java heap
+     *  -map file       keep pending events in the memory-mapped file
+     *  -memory count   keep at most count pending events in memory, and the
+     *                  rest on disk, see SpillHeap; implies -offheap
+     *  -server port    serve simulation jobs on the local port, see Server
+     *  -stimulus file  drive the input gates from the stimulus file
+     *  -window time    how far ahead to read the stimulus file; this may
+     *                  change the order of changes at the same time,
+     *                  unless events are kept off-heap
+     *  -live           drive the input gates from stimulus records on
+     *                  standard input as they arrive, see Inbox; like
+     *                  -window, this may change the order of changes at
+     *                  the same time, unless events are kept off-heap
+     *  -probe pattern  trace only gates with names matching the pattern
+     *  -summary        print only final values and counts of changes
+     *  -lint           check the structure of the circuit and note what
+     *                  may be wrong, see Analysis
+     *  -faults time    measure stuck-at fault coverage up to time, see FaultSim
+     *  -exact          give every gate exactly its delay, without variation
+     *  -4state         simulate with unknown and undriven values, see Value
+     *  -delta          evaluate each gate once per time, after all changes
+     *                  to its inputs at that time
+     *  -stats          print counts of events and gate evaluations, the
+     *                  events per second, and what -layout did
+     *  -layout         number the gates so that those joined by wires are
+     *                  near in memory, see Layout
+     *  -until time     stop simulating at time
+     *  -events count   stop simulating after count events
+     *  -detect         recognize oscillation, then stop or skip to -until
+     *  -O              simplify the circuit first, see Optimizer; this
+     *                  needs -offheap
+     *  -workers count  simulate in count processes, see Distributed; this
+     *                  needs -exact
+     *  -worker port    simulate part of a circuit for the process on port
+     *  -threads count  read the circuit with count threads, see Loader
+     *  -trace file     write output changes to file in binary, see Traces
+     *  -compare a b    compare the traces in files a and b, text or binary
+     *  -tolerance time times in compared traces may differ by up to time
      */ 
     public static void main( String[] args ) {
-	if (args.length < 1) {
+	String fileName = null;
+	int port = -1;
+	int workers = 0;
+	int coordinator = -1;
+	int threads = 1;
+	String[] compare = null;
+	float tolerance = 0.0f;
+
+	for (int i = 0; i < args.length; i++) {
+	    String arg = args[i];
+	    if ("-offheap".equals( arg )) {
+		offHeap = true;
+	    } else if ("-map".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal( "Missing file after -map" );
+		i = i + 1;
+		map = new File( args[i] );
+		offHeap = true;
+	    } else if ("-memory".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing count after -memory"
+		);
+		i = i + 1;
+		try {
+		    memory = Integer.parseInt( args[i] );
+		} catch (NumberFormatException e) {
+		    Errors.fatal( "Bad count: " + args[i] );
+		}
+		if (memory < 4) Errors.fatal( "Bad count: " + args[i] );
+		offHeap = true;
+	    } else if ("-layout".equals( arg )) {
+		layout = true;
+	    } else if ("-live".equals( arg )) {
+		live = true;
+	    } else if ("-stimulus".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing file after -stimulus"
+		);
+		i = i + 1;
+		stimulus = new File( args[i] );
+	    } else if ("-window".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing time after -window"
+		);
+		i = i + 1;
+		try {
+		    window = Float.parseFloat( args[i] );
+		} catch (NumberFormatException e) {
+		    Errors.fatal( "Bad window: " + args[i] );
+		}
+		if (!(window > 0.0f)) Errors.fatal( "Bad window: " + args[i] );
+	    } else if ("-probe".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing pattern after -probe"
+		);
+		i = i + 1;
+		probes.add( args[i] );
+	    } else if ("-summary".equals( arg )) {
+		Probes.summary = true;
+	    } else if ("-lint".equals( arg )) {
+		lint = true;
+	    } else if ("-exact".equals( arg )) {
+		Gate.exact = true;
+	    } else if ("-4state".equals( arg )) {
+		Value.fourState = true;
+	    } else if ("-delta".equals( arg )) {
+		Gate.delta = true;
+	    } else if ("-stats".equals( arg )) {
+		stats = true;
+	    } else if ("-until".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing time after -until"
+		);
+		i = i + 1;
+		try {
+		    until = Float.parseFloat( args[i] );
+		} catch (NumberFormatException e) {
+		    Errors.fatal( "Bad time: " + args[i] );
+		}
+	    } else if ("-events".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing count after -events"
+		);
+		i = i + 1;
+		try {
+		    budget = Long.parseLong( args[i] );
+		} catch (NumberFormatException e) {
+		    Errors.fatal( "Bad count: " + args[i] );
+		}
+	    } else if ("-detect".equals( arg )) {
+		detect = true;
+	    } else if ("-O".equals( arg )) {
+		optimize = true;
+	    } else if ("-faults".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing time after -faults"
+		);
+		i = i + 1;
+		try {
+		    faults = Float.parseFloat( args[i] );
+		} catch (NumberFormatException e) {
+		    Errors.fatal( "Bad time: " + args[i] );
+		}
+		if (!(faults >= 0.0f)) Errors.fatal( "Bad time: " + args[i] );
+	    } else if ("-server".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal( "Missing port after -server" );
+		i = i + 1;
+		try {
+		    port = Integer.parseInt( args[i] );
+		} catch (NumberFormatException e) {
+		    Errors.fatal( "Bad port number: " + args[i] );
+		}
+	    } else if ("-workers".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing count after -workers"
+		);
+		i = i + 1;
+		try {
+		    workers = Integer.parseInt( args[i] );
+		} catch (NumberFormatException e) {
+		    Errors.fatal( "Bad count: " + args[i] );
+		}
+		if (workers < 1) Errors.fatal( "Bad count: " + args[i] );
+	    } else if ("-worker".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing port after -worker"
+		);
+		i = i + 1;
+		try {
+		    coordinator = Integer.parseInt( args[i] );
+		} catch (NumberFormatException e) {
+		    Errors.fatal( "Bad port number: " + args[i] );
+		}
+	    } else if ("-threads".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing count after -threads"
+		);
+		i = i + 1;
+		try {
+		    threads = Integer.parseInt( args[i] );
+		} catch (NumberFormatException e) {
+		    Errors.fatal( "Bad count: " + args[i] );
+		}
+		if (threads < 1) Errors.fatal( "Bad count: " + args[i] );
+	    } else if ("-trace".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing file after -trace"
+		);
+		i = i + 1;
+		trace = new File( args[i] );
+	    } else if ("-compare".equals( arg )) {
+		if (i + 2 >= args.length) Errors.fatal(
+		    "Missing files after -compare"
+		);
+		compare = new String[] { args[i + 1], args[i + 2] };
+		i = i + 2;
+	    } else if ("-tolerance".equals( arg )) {
+		if (i + 1 == args.length) Errors.fatal(
+		    "Missing time after -tolerance"
+		);
+		i = i + 1;
+		try {
+		    tolerance = Float.parseFloat( args[i] );
+		} catch (NumberFormatException e) {
+		    Errors.fatal( "Bad time: " + args[i] );
+		}
+		if (!(tolerance >= 0.0f)) Errors.fatal( "Bad time: " + args[i] );
+	    } else if (arg.startsWith( "-" )) {
+		Errors.fatal( "Unknown option: " + arg );
+	    } else if (fileName != null) {
+		Errors.fatal( "Too many arguments" );
+	    } else {
+		fileName = arg;
+	    }
+	}
+
+	if (compare != null) {
+	    if (fileName != null) Errors.fatal( "Too many arguments" );
+	    if (!Traces.compare( compare[0], compare[1], tolerance )) {
+		System.exit( 1 );
+	    }
+	    return;
+	}
+
+	// the optimizer needs events at the same time in a fixed order
+	if (optimize && !offHeap) Errors.fatal( "Optimization needs -offheap" );
+
+	if (Value.fourState && (optimize || (faults >= 0.0f))) Errors.fatal(
+	    "Four-state simulation can't use -O or -faults"
+	);
+
+	if ((trace != null) && ((port >= 0) || (workers > 0)
+	    || (coordinator >= 0) || (faults >= 0.0f))) Errors.fatal(
+	    "Only a single simulation can use -trace"
+	);
+
+	if (live && ((port >= 0) || (workers > 0) || (coordinator >= 0)
+	    || (faults >= 0.0f) || detect)) Errors.fatal(
+	    "Live input can't use -server, -workers, -worker, -faults"
+	    + " or -detect"
+	);
+
+	if ((workers > 0) || (coordinator >= 0)) {
+	    if (!Gate.exact) Errors.fatal( "Distributed simulation needs -exact" );
+	    if ((port >= 0) || (faults >= 0.0f) || detect || stats
+		|| (budget != Long.MAX_VALUE)) Errors.fatal(
+		"Distributed simulation can't use -server, -faults, -detect,"
+		+ " -stats or -events"
+	    );
+	    offHeap = true; // for the order of events at the same time
+	    if (coordinator >= 0) {
+		map = null;
+		distributed = new Distributed.Worker( coordinator );
+	    } else {
+		distributed = new Distributed.Coordinator( workers, args );
+	    }
+	}
+
+	if (port >= 0) {
+	    if (fileName != null) Errors.fatal( "Too many arguments" );
+	    if (map != null) Errors.fatal( "Jobs can't share one -map file" );
+	    Server.serve( port );
+	} else if (fileName == null) {
 	    Errors.fatal( "Missing file name argument" );
-	} else if (args.length > 1) {
-	    Errors.fatal( "Too many arguments" );
 	} else try {
-	    readCircuit( new Scanner( new File( args[0] ) ) );
-	    sanityCheck();
-	    if (Errors.count() == 0) Simulator.run();
+	    if (threads > 1) {
+		Loader.read( new File( fileName ), threads );
+	    } else {
+		readCircuit( new Scanner( new File( fileName ) ) );
+	    }
+	    simulate();
 	    // note that writeCircuit is no longer called anywhere
-	} catch (FileNotFoundException e) {
+	} catch (IOException e) {
 	    Errors.fatal( "Can't open the file" );
 	}
     }
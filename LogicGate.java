@@ -0,0 +1,112 @@
+/* LogicGate.java
+ * Properties common to logic gates with a single output
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.util.Random;
+
+/** Gathers all of the properties common to single-output gates
+ *  Specifically, all LogicGates drive a single list of output wires
+ *  with a single output value when an OutputChangeEvent occurs.
+ *  @see LutGate
+ *  @see NotGate
+ */
+abstract class LogicGate extends Gate {
+    // set of all wires out of this gate
+    private final Wire.Fanout outgoing = new Wire.Fanout();
+
+    // this gate's value, computed by input change events, see Value
+    protected byte value = (byte)Value.initial();
+
+    // this gate's most recent actual output value
+    private byte outValue = (byte)Value.initial();
+
+    // the action that simulates an output change of this gate
+    protected final int outputAction
+	= Simulator.registerValue( (float t, int v)->outputChangeEvent( t ) );
+
+    // the random stream of the thread that built this gate, see PRNG
+    private final Random random = PRNG.current();
+
+    /** The constructor used only from subclasses of LogicGate
+     *  @param name used to initialize the final field
+     *  @param delay used to initialize the final field
+     */
+    public LogicGate( String name, float delay ) {
+	super( name, delay );
+    }
+
+    /** tell the gate that one of its output pins is in use
+     *  @param w the wire that is connected
+     *  @param pinName
+     *  @return corresponding pin number
+     */
+    public final int registerOutput( Wire w, String pinName ) {
+	if ("out".equals( pinName )) {
+	    outgoing.add( w );
+	    return 0;
+	} else {
+	    Errors.warn( "Illegal output pin: " + name + " " + pinName );
+	    return -1;
+	}
+    }
+
+    final void unregisterOutput( Wire w ) {
+	outgoing.remove( w );
+    }
+
+    /** get the name of the output pin, given its number
+     *  @param pinNumber
+     *  @return pinName
+     */
+    public final String outPinName( int pinNumber ) {
+	if (pinNumber == 0) return "out";
+	return "???";
+    }
+
+    final String outputPin() {
+	return "out";
+    }
+
+    int state() {
+	return value | (outValue << 2);
+    }
+
+    /** get the time an output change computed at time t takes effect
+     *  @param t the time the change was computed
+     *  @return the time it reaches the output, after the gate's delay
+     */
+    protected final float outputTime( float t ) {
+	if (exact) return t + delay;
+	return t + (delay * 0.95f) + (random.nextFloat() * (delay * 0.1f));
+    }
+
+    /** get the most recent value of this gate's output
+     *  @return the value
+     */
+    final int outputValue() {
+	return outValue;
+    }
+
+    // Simulation methods
+
+    /** Simulate an output change on this wire
+     *  @param time tells when this wire's input changes
+     *  Passes the new value to the input of the gate to which this wire goes.
+     *  Uses the this.value field to determine the new output value.
+     *  Output change events are scheduled (directly or indirectly) by the
+     *  input change event of the actual gate object.
+     *  @see Gate.inputChangeEvent
+     */
+    protected final void outputChangeEvent( float time ) {
+	if (value != outValue) { // only if the output actually changes
+	    outValue = value;
+	    trace( time, "out", value );
+	    outgoing.send( time, value );
+	}
+    }
+
+} // abstract class LogicGate
@@ -0,0 +1,240 @@
+/* LutGate.java
+ * Representation of logic gates given by truth tables
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+/** Handles gates whose function is given by a truth table.
+ *  A gate with k inputs, in1 to ink, has a table of 2 to the k bits; the
+ *  inputs, read as a binary number with in1 as the least significant bit,
+ *  give the index of the bit that is the output.  The table is a long, so
+ *  k is at most 6.  The and and or gates are truth tables, as are xor,
+ *  nand, nor, mux, where in3 selects in1 when false and in2 when true,
+ *  and maj, the majority of three inputs; the lut kind gives any table.
+ *  Every such gate is evaluated by the same code, which shifts the table
+ *  by the index and keeps one bit.
+ *  @see LogicGate
+ */
+final class LutGate extends LogicGate implements Simulator.Deferred {
+    // the built-in kinds, with their input counts and truth tables
+    private static final String[] KINDS
+	= { "and", "or", "xor", "nand", "nor", "mux", "maj" };
+    private static final int[] INPUTS = { 2, 2, 2, 2, 2, 3, 3 };
+    private static final long[] TABLES
+	= { 0x8L, 0xEL, 0x6L, 0x7L, 0x1L, 0xCAL, 0xE8L };
+
+    /** the most inputs a truth table can have
+     */
+    static final int MAX_INPUTS = 6;
+
+    private final String kind;      // a built-in kind, or null for lut
+
+    /** the number of inputs
+     */
+    final int inputs;
+
+    /** the truth table
+     */
+    final long table;
+
+    // usage records for inputs, bit p - 1 for pin p
+    private int used = 0;
+
+    // the first wire into each input, see Wire.share
+    private final Wire[] first;
+
+    // the inputs that are ONE, and those that are X or Z, bit p - 1 for pin p
+    private int index = 0;
+    private int unknown = Value.fourState ? -1 : 0;
+
+    // is an evaluation deferred until the end of the current time?
+    private boolean dirty = false;
+
+    /** The constructor used only from within class Gate
+     *  @param name used to initialize the final field
+     *  @param delay used to initialize the final field
+     *  @param inputs the number of inputs, from 1 to MAX_INPUTS
+     *  @param table the truth table
+     */
+    LutGate( String name, float delay, int inputs, long table ) {
+	this( name, delay, null, inputs, table );
+    }
+
+    private LutGate(
+	String name, float delay, String kind, int inputs, long table
+    ) {
+	super( name, delay );
+	this.kind = kind;
+	this.inputs = inputs;
+	this.table = table;
+	first = new Wire[inputs];
+	unknown = unknown & ((1 << inputs) - 1);
+    }
+
+    /** construct a gate of one of the built-in kinds
+     *  @param name the name of the new gate
+     *  @param kind the kind, as in the circuit description
+     *  @param delay the delay of the new gate
+     *  @return the new gate, or null if kind is not built in
+     */
+    static LutGate builtIn( String name, String kind, float delay ) {
+	for (int i = 0; i < KINDS.length; i++) {
+	    if (KINDS[i].equals( kind )) {
+		return new LutGate( name, delay, KINDS[i], INPUTS[i], TABLES[i] );
+	    }
+	}
+	return null;
+    }
+
+    /** is kind one of the built-in kinds?
+     *  @param kind the kind, as in the circuit description
+     *  @return true if it is
+     */
+    static boolean isBuiltIn( String kind ) {
+	for (String k: KINDS) if (k.equals( kind )) return true;
+	return false;
+    }
+
+    /** tell the gate that one of its input pins is in use
+     *  @param w the wire that is connected
+     *  @param pinName
+     *  @return corresponding pin number
+     */
+    public int registerInput( Wire w, String pinName ) {
+	int p = pinNumber( pinName );
+	if (p < 0) {
+	    Errors.warn( "Illegal input pin: " + name + " " + pinName );
+	    return -1;
+	}
+	int bit = 1 << (p - 1);
+	if ((used & bit) == 0) {
+	    first[p - 1] = w;
+	} else if (Value.fourState) {
+	    first[p - 1].share( w );
+	} else {
+	    Errors.warn( "Multiple uses of input pin: " + name + " " + pinName );
+	}
+	used = used | bit;
+	return p;
+    }
+
+    // the number of the pin in1 to ink, or -1 if there is no such pin
+    private int pinNumber( String pinName ) {
+	for (int p = 1; p <= inputs; p++) {
+	    if (("in" + p).equals( pinName )) return p;
+	}
+	return -1;
+    }
+
+    /** get the name of the input pin, given its number
+     * @param pinNumber
+     * @return pinName
+     */
+    public String inPinName( int pinNumber ) {
+	if ((pinNumber >= 1) && (pinNumber <= inputs)) return "in" + pinNumber;
+	return "???";
+    }
+
+    int state() {
+	return super.state() | (index << 4) | (unknown << 10);
+    }
+
+    /** check the sanity of this gate's connections
+     */
+    public void checkSanity() {
+	for (int p = 1; p <= inputs; p++) {
+	    if ((used & (1 << (p - 1))) == 0) {
+		Errors.warn( "Unused input pin: " + name + " in" + p );
+	    }
+	}
+
+	// gates that are true with all inputs false kick their outputs
+	value = (byte)evaluate();
+	if (local && (value != outputValue())) {
+	    simulator.schedule( delay, outputAction, value );
+	}
+    }
+
+    /** reconstruct the textual description of this gate
+     *  @return the textual description
+     */
+    public String toString() {
+	if (kind != null) return "gate " + name + " " + kind + " " + delay;
+	return "gate " + name + " lut " + delay + " " + inputs
+	    + " 0x" + Long.toHexString( table );
+    }
+
+    String kind() {
+	if (kind != null) return kind;
+	return "lut " + inputs + " 0x" + Long.toHexString( table );
+    }
+
+    boolean startsSimulation() {
+	return (table & 1) != 0;
+    }
+
+    // Simulation methods
+
+    // look up the output in the truth table
+    private int evaluate() {
+	if (unknown == 0) return (int)(table >>> index) & 1;
+
+	// try every value of the unknown inputs
+	int known = index & ~unknown;
+	boolean zero = false;
+	boolean one = false;
+	int s = 0;
+	do { // s runs through the subsets of unknown
+	    if (((table >>> (known | s)) & 1) != 0) {
+		one = true;
+	    } else {
+		zero = true;
+	    }
+	    s = (s - unknown) & unknown;
+	} while (s != 0);
+	if (zero && one) return Value.X;
+	return one ? Value.ONE : Value.ZERO;
+    }
+
+    /** simulate the change of one of this gate's inputs
+     *  @param time the time when the input changes
+     *  @param dstPin the pin that changes
+     *  @param v the new logic value
+     */
+    public void inputChangeEvent( float time, int dstPin, int v ) {
+	int p = dstPin - 1;
+	index = (index & ~(1 << p)) | ((v & 1) << p);
+	unknown = (unknown & ~(1 << p)) | ((v >> 1) << p);
+	if (!delta) {
+	    evaluations = evaluations + 1;
+	    update( time );
+	} else if (!dirty) {
+	    dirty = true;
+	    simulator.defer( time, this );
+	}
+    }
+
+    /** evaluate the inputs after all changes at one time, see Gate.delta
+     *  @param time the time
+     */
+    public void settle( float time ) {
+	dirty = false;
+	evaluations = evaluations + 1;
+	update( time );
+    }
+
+    // schedule an output change if the value changes
+    private void update( float t ) {
+	byte newVal = (byte)evaluate();
+	if (newVal != value) {
+	    value = newVal;
+	    simulator.schedule(
+		outputTime( t ),
+		outputAction, value
+	    );
+	}
+    }
+
+} // class LutGate
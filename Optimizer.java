@@ -0,0 +1,377 @@
+/* Optimizer.java
+ * Simplifies a logic circuit before it is simulated
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+/** Removes redundant gates and wires from the circuit of this thread.
+ *  Every pass keeps the transitions of observable gates, those that are
+ *  probed, at exactly the times they would have had.  Any explicit probes
+ *  must be resolved before the optimizer runs, and without them every gate
+ *  is observable, so little can be removed.
+ *
+ *  When events happen at the same time, the order they are triggered in
+ *  can matter, so the optimized circuit must be simulated with the events
+ *  kept off-heap, where that order is fixed by action registration number.
+ *  Wires that are moved to new sources and const gates that replace not
+ *  gates keep their actions, and all other events that are removed could
+ *  only have affected removed gates.
+ *
+ *  Constant propagation removes gates whose outputs can never change, and
+ *  replaces unobserved not gates with constant inputs by const gates.  The
+ *  gates it removes never draw random delays, so it is always exact.
+ *
+ *  The other passes remove gates that would draw random delays, so they
+ *  change the random numbers every later gate sees; they are done only with
+ *  exact delays.  Structural hashing merges gates of the same kind and
+ *  delay with the same inputs.  Dead-gate elimination removes gates that
+ *  drive no observable gate.  Not-not folding replaces a pair of inverters
+ *  by one wire carrying the sum of their delays; in this simulator, a pair
+ *  of inverters is not a buffer, since both start by kicking their outputs
+ *  and each swallows pulses shorter than its delay, so pairs are folded only
+ *  where the input changes at most once and late enough that neither effect
+ *  is seen.  Folded delays are added in a different order than the
+ *  simulation would add them, so times can differ by rounding, but not for
+ *  delays that are exact binary fractions.
+ *  @see Logic
+ */
+class Optimizer {
+    private final Gate[] gates;                // indexed by gate number
+    private final boolean[] gone;              // gates removed, by number
+    private final ArrayList <ArrayList <Wire>> ins = new ArrayList <> ();
+    private final ArrayList <ArrayList <Wire>> outs = new ArrayList <> ();
+    private final HashSet <Wire> dead = new HashSet <Wire> ();
+    private final LinkedList <Wire> added = new LinkedList <Wire> ();
+
+    /** prepare to optimize the circuit of this thread
+     *  @param gates the gates of the circuit, by number
+     *  The circuit must have been read without errors.
+     */
+    Optimizer( Gate[] gates ) {
+	this.gates = gates;
+	gone = new boolean[gates.length];
+	for (int i = 0; i < gates.length; i++) {
+	    ins.add( new ArrayList <Wire> () );
+	    outs.add( new ArrayList <Wire> () );
+	}
+	for (Wire w: Logic.wires()) {
+	    outs.get( w.source().number ).add( w );
+	    ins.get( w.destination().number ).add( w );
+	}
+    }
+
+    /** optimize the circuit, leaving the result in Logic.gates() and wires()
+     *  The gates must be numbered again before they are simulated.
+     */
+    void run() {
+	constants();
+	if (Gate.exact) {
+	    boolean changed;
+	    do {
+		changed = hash();
+		changed = deadGates() | changed;
+		changed = fold() | changed;
+	    } while (changed);
+	}
+
+	LinkedList <Gate> list = Logic.gates();
+	list.clear();
+	for (Gate g: gates) if (!gone[g.number]) list.add( g );
+	LinkedList <Wire> wires = Logic.wires();
+	wires.addAll( added );
+	wires.removeIf( (Wire w)->dead.contains( w ) );
+    }
+
+    // tools for editing the circuit
+
+    // disconnect the wire w from everything
+    private void kill( Wire w ) {
+	dead.add( w );
+	w.source().unregisterOutput( w );
+	outs.get( w.source().number ).remove( w );
+	ins.get( w.destination().number ).remove( w );
+    }
+
+    // replace the wire w by one from pin of src, with the given delay
+    private void move( Wire w, Gate src, String pin, float delay ) {
+	Wire n = new Wire( src, pin, w, delay );
+	kill( w );
+	outs.get( src.number ).add( n );
+	ins.get( n.destination().number ).add( n );
+	added.add( n );
+    }
+
+    // remove the gate g and all its wires
+    private void remove( Gate g ) {
+	gone[g.number] = true;
+	disconnect( g );
+    }
+
+    // remove all the wires of gate g
+    private void disconnect( Gate g ) {
+	for (Wire w: new ArrayList <Wire> ( ins.get( g.number ) )) kill( w );
+	for (Wire w: new ArrayList <Wire> ( outs.get( g.number ) )) kill( w );
+    }
+
+    // does the wire w come from the false output of a const gate?
+    private static boolean fromFalse( Wire w ) {
+	return "const".equals( w.source().kind() ) && (w.srcPin() == 0);
+    }
+
+    // constant propagation
+
+    // remove gates that never change and make unobserved not gates constant
+    private void constants() {
+	// find which gates may change, starting with those that start things
+	boolean[] may = new boolean[gates.length];
+	LinkedList <Gate> work = new LinkedList <Gate> ();
+	for (Gate g: gates) {
+	    if (!isAnd( g ) && !isOr( g )) {
+		may[g.number] = true;
+		work.add( g );
+	    }
+	}
+	while (!work.isEmpty()) {
+	    Gate g = work.removeFirst();
+	    for (Wire w: outs.get( g.number )) {
+		Gate d = w.destination();
+		if (!may[d.number] && mayChange( d, may )) {
+		    may[d.number] = true;
+		    work.add( d );
+		}
+	    }
+	}
+
+	for (Gate g: gates) {
+	    if (!may[g.number]) {
+		// a probed gate stays, since the summary reports it
+		if (g.probed) {
+		    disconnect( g );
+		} else {
+		    remove( g );
+		}
+	    } else if ("not".equals( g.kind() ) && !g.probed
+		       && !pinMayChange( g, 0, may )) {
+		// it goes true after its delay and stays there, just like this
+		Gate c = Gate.makeConst( (LogicGate)g );
+		c.number = g.number;
+		c.probed = false;
+		gates[g.number] = c;
+		for (Wire w: new ArrayList <Wire> ( ins.get( g.number ) )) {
+		    kill( w );
+		}
+		for (Wire w: new ArrayList <Wire> ( outs.get( g.number ) )) {
+		    move( w, c, "true", w.delay() );
+		}
+	    }
+	}
+    }
+
+    private static boolean isAnd( Gate g ) {
+	return "and".equals( g.kind() );
+    }
+
+    private static boolean isOr( Gate g ) {
+	return "or".equals( g.kind() );
+    }
+
+    // can the and or or gate g ever change, given which gates may change?
+    private boolean mayChange( Gate g, boolean[] may ) {
+	boolean in1 = pinMayChange( g, 1, may );
+	boolean in2 = pinMayChange( g, 2, may );
+	if (isAnd( g )) return in1 && in2;  // an input stuck false holds it
+	return in1 || in2;
+    }
+
+    // can input pin of gate g ever change, given which gates may change?
+    private boolean pinMayChange( Gate g, int pin, boolean[] may ) {
+	for (Wire w: ins.get( g.number )) {
+	    if ((w.dstPin() == pin)
+		&& may[w.source().number] && !fromFalse( w )) return true;
+	}
+	return false;
+    }
+
+    // structural hashing
+
+    // merge duplicate gates, returning true if any were merged
+    private boolean hash() {
+	boolean changed = false;
+	HashMap <String,Gate> seen = new HashMap <String,Gate> ();
+	for (Gate g: gates) {
+	    if (gone[g.number] || "input".equals( g.kind() )) continue;
+	    String key = key( g );
+	    Gate keep = seen.get( key );
+	    if (keep == null) {
+		seen.put( key, g );
+		continue;
+	    }
+	    Gate drop = g;
+	    if (!keep.probed && g.probed) { // keep the one that is observed
+		drop = keep;
+		keep = g;
+		seen.put( key, keep );
+	    }
+	    if (drop.probed) continue;
+	    for (Wire w: new ArrayList <Wire> ( outs.get( drop.number ) )) {
+		move( w, keep, w.srcPinName(), w.delay() );
+	    }
+	    remove( drop );
+	    changed = true;
+	}
+	return changed;
+    }
+
+    // gates with equal keys behave identically
+    private String key( Gate g ) {
+	ArrayList <String> inputs = new ArrayList <String> ();
+	for (Wire w: ins.get( g.number )) {
+	    inputs.add(
+		w.dstPin() + ":" + w.source().number + ":" + w.srcPin() + ":"
+		+ Float.floatToIntBits( w.delay() )
+	    );
+	}
+	String[] sorted = inputs.toArray( new String[0] );
+	Arrays.sort( sorted );
+	return g.kind() + " " + Float.floatToIntBits( g.delay ) + " "
+	    + String.join( " ", sorted );
+    }
+
+    // dead-gate elimination
+
+    // remove gates that drive no observable gate, true if any were removed
+    private boolean deadGates() {
+	boolean[] live = new boolean[gates.length];
+	LinkedList <Gate> work = new LinkedList <Gate> ();
+	for (Gate g: gates) {
+	    // input gates stay, since the stimulus names them
+	    if (!gone[g.number] && (g.probed || "input".equals( g.kind() ))) {
+		live[g.number] = true;
+		work.add( g );
+	    }
+	}
+	while (!work.isEmpty()) {
+	    Gate g = work.removeFirst();
+	    for (Wire w: ins.get( g.number )) {
+		Gate s = w.source();
+		if (!live[s.number]) {
+		    live[s.number] = true;
+		    work.add( s );
+		}
+	    }
+	}
+
+	boolean changed = false;
+	for (Gate g: gates) {
+	    if (!gone[g.number] && !live[g.number]) {
+		remove( g );
+		changed = true;
+	    }
+	}
+	return changed;
+    }
+
+    // not-not folding
+
+    // fold pairs of unobserved not gates, true if any were folded
+    private boolean fold() {
+	for (Gate g: gates) {
+	    if (!gone[g.number] && (g.delay < 0.0f)) return false;
+	}
+	for (Wire w: Logic.wires()) if (w.delay() < 0.0f) return false;
+
+	// find the gates whose outputs change at most once, from false to true
+	// and, for those, a lower bound on the time of the change
+	boolean[] once = new boolean[gates.length];
+	for (Gate g: gates) {
+	    once[g.number] = !gone[g.number]
+		&& (isAnd( g ) || isOr( g ) || "const".equals( g.kind() ));
+	}
+	boolean changed;
+	do { // and and or of rising inputs can only rise
+	    changed = false;
+	    for (Gate g: gates) {
+		if (!once[g.number]) continue;
+		for (Wire w: ins.get( g.number )) {
+		    if (!once[w.source().number]) {
+			once[g.number] = false;
+			changed = true;
+			break;
+		    }
+		}
+	    }
+	} while (changed);
+	float[] early = earliest( once );
+
+	boolean folded = false;
+	for (Gate n1: gates) {
+	    if (gone[n1.number] || !"not".equals( n1.kind() ) || n1.probed) {
+		continue;
+	    }
+	    ArrayList <Wire> in1 = ins.get( n1.number );
+	    ArrayList <Wire> out1 = outs.get( n1.number );
+	    if ((in1.size() != 1) || (out1.size() != 1)) continue;
+	    Wire w1 = in1.get( 0 );
+	    Wire w2 = out1.get( 0 );
+	    Gate x = w1.source();
+	    Gate n2 = w2.destination();
+	    if (!once[x.number] || fromFalse( w1 )) continue;
+	    if (!"not".equals( n2.kind() ) || n2.probed || (n2 == n1)) continue;
+	    if (ins.get( n2.number ).size() != 1) continue;
+
+	    // the kick of n2 must be cancelled before it reaches the output
+	    if (!(n1.delay + w2.delay() < n2.delay)) continue;
+	    // and n1 must go true, then have a pulse long enough for n2
+	    if (!(early[x.number] + w1.delay()
+		  > Math.max( n1.delay, n2.delay ))) continue;
+
+	    float through = w1.delay() + n1.delay + w2.delay() + n2.delay;
+	    for (Wire w3: new ArrayList <Wire> ( outs.get( n2.number ) )) {
+		move( w3, x, w1.srcPinName(), through + w3.delay() );
+	    }
+	    remove( n1 );
+	    remove( n2 );
+	    folded = true;
+	}
+	return folded;
+    }
+
+    // the earliest time each gate that changes once can change
+    private float[] earliest( boolean[] once ) {
+	float[] early = new float[gates.length];
+	Arrays.fill( early, Float.POSITIVE_INFINITY );
+	PriorityQueue <Gate> queue = new PriorityQueue <Gate> (
+	    (Gate a, Gate b)->Float.compare( early[a.number], early[b.number] )
+	);
+	for (Gate g: gates) {
+	    if (once[g.number] && "const".equals( g.kind() )) {
+		early[g.number] = g.delay;
+		queue.add( g );
+	    }
+	}
+	while (!queue.isEmpty()) { // shortest paths, since delays are positive
+	    Gate g = queue.remove();
+	    for (Wire w: outs.get( g.number )) {
+		Gate d = w.destination();
+		if (!once[d.number] || fromFalse( w )) continue;
+		float t = early[g.number] + w.delay() + d.delay;
+		if (t < early[d.number]) {
+		    queue.remove( d );
+		    early[d.number] = t;
+		    queue.add( d );
+		}
+	    }
+	}
+	return early;
+    }
+
+} // class Optimizer
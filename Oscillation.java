@@ -0,0 +1,284 @@
+/* Oscillation.java
+ * Recognizes periodic steady states of a simulated logic circuit
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** Watches a simulation for a periodic steady state.
+ *  Before each new time, the state of every gate and every pending event,
+ *  relative to the current time, is hashed.  When a hash repeats, the
+ *  circuit may be back in a state it was in one period ago, so that state
+ *  is saved and one more period is simulated, noting the gates that
+ *  oscillate.  If the saved state then comes back, compared in full and
+ *  not by hash, the circuit will go on repeating forever, and the
+ *  simulation either stops or, if there is a time limit, skips whole
+ *  periods to just before it; otherwise the watch is abandoned.  Events
+ *  at the same time are triggered in no particular order unless they are
+ *  kept off-heap, so with races between them, the same state may not
+ *  always lead to the same future; with -offheap, it always does.
+ *  The hash of the gates is kept up to date as events are triggered, so
+ *  only the gates they changed are hashed again at each new time.
+ *  Recognition needs exact delays, since random variation in gate delays
+ *  means no state ever exactly repeats.  States with pending events that
+ *  are not registered actions, such as stimulus reads, are not hashed.
+ *  @see Simulator
+ */
+class Oscillation implements Simulator.Monitor {
+    // forget old states when there are this many
+    private static final int LIMIT = 1 << 20;
+
+    private final Gate[] gates;        // all gates, by number
+    private final float until;         // the time limit, or infinity
+
+    // the gate whose state each action changes, by number, or -1
+    private final int[] owner;
+
+    // the hash of the gates, the sum of what each adds to it
+    private long gateHash = 0;
+    private final long[] part;
+
+    // gates changed since the previous time, to be hashed again
+    private final int[] dirty;
+    private int dirtyCount = 0;
+    private final boolean[] isDirty;
+    private boolean allDirty = true;   // so hash them all
+
+    // when each hashed state was seen
+    private final HashMap <Long,Float> seen = new HashMap <Long,Float> ();
+
+    // after a repeat, the hash, time and state where the period being
+    // watched began
+    private long repeat;
+    private float start = Float.NaN;
+    private float longest;            // the longest the period can be
+    private int[] states;             // of each gate
+    private int[] values;             // of each wire
+    private long[] events;            // see snapshot
+    private boolean[] toggled;        // which gates changed in that period
+    private int[] last;               // the outputs at the previous time
+    private int[] changes;            // the count of changes at start
+
+    private boolean done = false;
+
+    // the hash of the pending events, accumulated by the visitor
+    private long eventHash;
+    private float now;
+    private float quantum;
+
+    /** construct a monitor for the circuit of this thread
+     *  @param gates the gates of the circuit, by number
+     *  @param until the time limit of the simulation, or infinity if none
+     */
+    Oscillation( Gate[] gates, float until ) {
+	this.gates = gates;
+	this.until = until;
+	part = new long[gates.length];
+	dirty = new int[gates.length];
+	isDirty = new boolean[gates.length];
+
+	// each action on values has two numbers in four-state simulation
+	owner = new int[Simulator.actions()];
+	Arrays.fill( owner, -1 );
+	for (Wire w: Logic.wires()) own( w.action(), w.destination() );
+	for (Gate g: gates) {
+	    if (g instanceof LogicGate) own( ((LogicGate)g).outputAction, g );
+	    if (g instanceof InputGate) own( ((InputGate)g).stimulusAction, g );
+	}
+    }
+
+    // note that action a on values changes the state of gate g
+    private void own( int a, Gate g ) {
+	owner[a] = g.number;
+	if (Value.fourState) owner[a + 1] = g.number;
+    }
+
+    public void triggered( int action ) {
+	if (allDirty) return;
+	int g = ((action < 0) || (action >= owner.length)) ? -1 : owner[action];
+	if (g < 0) {
+	    allDirty = true; // no telling what changed
+	} else if (!isDirty[g]) {
+	    isDirty[g] = true;
+	    dirty[dirtyCount++] = g;
+	}
+    }
+
+    public void step( float time ) {
+	if (done) return;
+	rehash();
+	Long h = hash( time );
+	if (h == null) return; // this state can't be hashed
+
+	if (!Float.isNaN( start )) { // watching the period
+	    if ((h == repeat) && same( time )) {
+		finish( time );
+	    } else if (time - start > longest) {
+		start = Float.NaN; // it was not a repeat after all
+		seen.put( h, time );
+	    }
+	    return;
+	}
+
+	Float then = seen.get( h );
+	if (then == null) {
+	    if (seen.size() >= LIMIT) seen.clear();
+	    seen.put( h, time );
+	    return;
+	}
+
+	// the state may repeat, so watch one period to see what changes
+	repeat = h;
+	start = time;
+	longest = 2 * (time - then); // with room for rounding
+	snapshot( time );
+	toggled = new boolean[gates.length];
+	last = new int[gates.length];
+	changes = new int[gates.length];
+	for (Gate g: gates) {
+	    last[g.number] = g.outputValue();
+	    changes[g.number] = g.changes;
+	}
+	seen.clear();
+    }
+
+    // hash again the gates changed since the previous time, and if
+    // watching the period, note which have changed their outputs
+    private void rehash() {
+	if (allDirty) {
+	    allDirty = false;
+	    for (int i = 0; i < dirtyCount; i++) isDirty[dirty[i]] = false;
+	    dirtyCount = 0;
+	    gateHash = 0;
+	    for (Gate g: gates) {
+		part[g.number] = part( g );
+		gateHash += part[g.number];
+		watch( g );
+	    }
+	    return;
+	}
+	for (int i = 0; i < dirtyCount; i++) {
+	    Gate g = gates[dirty[i]];
+	    isDirty[g.number] = false;
+	    gateHash -= part[g.number];
+	    part[g.number] = part( g );
+	    gateHash += part[g.number];
+	    watch( g );
+	}
+	dirtyCount = 0;
+    }
+
+    // what gate g adds to the hash of the gates
+    private static long part( Gate g ) {
+	return mix( ((long)g.number << 32) | (g.state() & 0xFFFFFFFFL) );
+    }
+
+    // if watching the period, note whether g has changed since last noted
+    private void watch( Gate g ) {
+	if (Float.isNaN( start ) || done) return;
+	int v = g.outputValue();
+	if (v != last[g.number]) {
+	    toggled[g.number] = true;
+	    last[g.number] = v;
+	}
+    }
+
+    // save the whole state at time, see same
+    private void snapshot( float time ) {
+	states = new int[gates.length];
+	for (Gate g: gates) states[g.number] = g.state();
+	values = new int[Logic.wires().size()];
+	int i = 0;
+	for (Wire w: Logic.wires()) values[i++] = w.value();
+	events = pendingEvents( time );
+    }
+
+    // is the state at time the saved one?  Times relative to the current
+    // time may differ by rounding, but nothing else may differ
+    private boolean same( float time ) {
+	for (Gate g: gates) if (g.state() != states[g.number]) return false;
+	int i = 0;
+	for (Wire w: Logic.wires()) if (w.value() != values[i++]) return false;
+	long[] e = pendingEvents( time );
+	if (e.length != events.length) return false;
+	for (i = 0; i < e.length; i++) {
+	    if ((e[i] >>> 32) != (events[i] >>> 32)) return false;
+	    float d = Float.intBitsToFloat( (int)e[i] )
+		    - Float.intBitsToFloat( (int)events[i] );
+	    if (Math.abs( d ) > quantum) return false;
+	}
+	return true;
+    }
+
+    // the pending events, each the code of its action and value, then the
+    // bits of its time relative to time, sorted; times are never negative
+    // so their bits sort in the order of the times
+    private long[] pendingEvents( float time ) {
+	int[] count = { 0 };
+	Simulator.pending( (float t, int action, boolean v)->count[0]++ );
+	long[] e = new long[count[0]];
+	count[0] = 0;
+	Simulator.pending( (float t, int action, boolean v)->{
+	    long code = (action << 1) | (v ? 1 : 0);
+	    e[count[0]++] = (code << 32)
+			  | (Float.floatToIntBits( t - time ) & 0xFFFFFFFFL);
+	} );
+	Arrays.sort( e );
+	return e;
+    }
+
+    // one full period has been watched; report it and act
+    private void finish( float time ) {
+	done = true;
+	float period = time - start;
+	StringBuilder names = new StringBuilder();
+	for (Gate g: gates) {
+	    if (toggled[g.number]) names.append( " " ).append( g.name );
+	}
+	Logic.out().println(
+	    "At " + time + " oscillation with period " + period + ":" + names
+	);
+
+	if (until == Float.POSITIVE_INFINITY) {
+	    Simulator.stop();
+	    return;
+	}
+	long skip = (long)Math.floor( (until - time) / period );
+	if (skip <= 0) return;
+	float dt = skip * period;
+	Simulator.shift( dt );
+	for (Gate g: gates) { // what the skipped periods would have counted
+	    g.changes = g.changes + (int)(skip * (g.changes - changes[g.number]));
+	}
+	Logic.out().println(
+	    "At " + time + " skipping " + skip + " periods to " + (time + dt)
+	);
+    }
+
+    // hash the state of the circuit relative to time, null if impossible
+    private Long hash( float time ) {
+	now = time;
+	// times relative to now differ by rounding from period to period
+	quantum = Math.max( Math.ulp( time ) * 64, Float.MIN_NORMAL );
+	eventHash = 0;
+	if (!Simulator.pending( (float t, int action, boolean v)->{
+		long r = Math.round( (t - now) / quantum );
+		// events are added, so their order doesn't matter
+		eventHash += mix( (r << 32) ^ (action << 1) ^ (v ? 1 : 0) );
+	    } )) return null;
+
+	return mix( eventHash ^ gateHash );
+    }
+
+    // scramble the bits of x, the finalizer of MurmurHash3
+    private static long mix( long x ) {
+	x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+	x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+	return x ^ (x >>> 33);
+    }
+
+} // class Oscillation
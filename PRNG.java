@@ -12,17 +12,34 @@ import java.util.Random;
 
 /** Pseudo Random Number Generator
  *  needed to make a single global stream of numbers, hiding Java's failures
+ *  Each thread gets its own stream, so simultaneous jobs don't disturb
+ *  each other's results.
  */
 public class PRNG {
-    private static Random stream = new Random( 29 );
+    private static final ThreadLocal <Random> stream
+	= ThreadLocal.withInitial( ()->new Random( 29 ) );
     // Bug:  For debugging, use a known seed so errors are reproducable
 
+    /** get this thread's stream, for objects that draw from it often; they
+     *  look it up once, when they are constructed
+     *  @return the stream
+     */
+    public static Random current() {
+	return stream.get();
+    }
+
+    /** restart this thread's stream, so its next job gets the same numbers
+     */
+    public static void reset() {
+	stream.remove();
+    }
+
     /** get a number n where 0 <= n < bound
      *  @param bound
      *  @return n
      */
     public static int fromZeroTo( int bound ) {
-	return stream.nextInt( bound );
+	return stream.get().nextInt( bound );
     }
 
     /** get a floating point number x such that 0 <= n < bound
@@ -30,6 +47,7 @@ public class PRNG {
      *  @return x
      */
     public static float randomFloat( float f ) {
-	return stream.nextFloat() * f;
+	return stream.get().nextFloat() * f;
     }
 }
+
@@ -0,0 +1,100 @@
+/* Probes.java
+ * Selects which gates of a logic circuit are traced
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/** Probes decide which gates have their output changes traced.
+ *  Probes are name patterns, where * matches any string of characters and
+ *  ? matches any one character; every other character matches only
+ *  itself.  They come from probe commands in the circuit description and
+ *  from -probe on the command line.  If there are no probes at all, every
+ *  gate is traced.
+ *  Probes are resolved once, when the circuit is loaded, so the simulation
+ *  only ever tests one boolean per output change.
+ *  @see Gate
+ */
+class Probes {
+    /** when true, output changes are only counted, and the values and counts
+     *  are printed when the simulation ends
+     */
+    static boolean summary = false;
+
+    private final Gate[] gates;                 // all gates, by number
+    private final BitSet probed = new BitSet(); // numbers of probed gates
+
+    /** resolve the probes of a circuit
+     *  @param gates all of the gates of the circuit, by number
+     *  @param globs the name patterns of the gates to trace
+     */
+    Probes( Gate[] gates, List <String> globs ) {
+	this.gates = gates;
+
+	if (globs.isEmpty()) {
+	    probed.set( 0, gates.length );
+	}
+	for (String glob: globs) {
+	    Pattern p = pattern( glob );
+	    boolean found = false;
+	    for (Gate g: gates) {
+		if (p.matcher( g.name ).matches()) {
+		    probed.set( g.number );
+		    found = true;
+		}
+	    }
+	    if (!found) Errors.warn( "No gates match: probe " + glob );
+	}
+
+	for (Gate g: gates) {
+	    g.probed = probed.get( g.number );
+	    g.changes = 0;
+	}
+    }
+
+    // the regular expression for a glob; all but * and ? match literally
+    private static Pattern pattern( String glob ) {
+	StringBuilder r = new StringBuilder();
+	int from = 0; // the start of the literal text not yet added
+	for (int i = 0; i < glob.length(); i++) {
+	    char c = glob.charAt( i );
+	    if ((c == '*') || (c == '?')) {
+		if (i > from) {
+		    r.append( Pattern.quote( glob.substring( from, i ) ) );
+		}
+		r.append( (c == '*') ? ".*" : "." );
+		from = i + 1;
+	    }
+	}
+	if (glob.length() > from) {
+	    r.append( Pattern.quote( glob.substring( from ) ) );
+	}
+	return Pattern.compile( r.toString() );
+    }
+
+    /** print the final value and count of changes of each probed gate
+     */
+    void summarize() {
+	for (int i = probed.nextSetBit( 0 ); i >= 0;
+	    i = probed.nextSetBit( i + 1 )) {
+	    summarize( gates[i] );
+	}
+    }
+
+    /** print the final value and count of changes of one gate
+     *  @param g the gate
+     */
+    void summarize( Gate g ) {
+	Logic.out().println(
+	    "Finally " + g.toString() + " " + g.outputPin()
+	    + " is " + Value.name( g.outputValue() )
+	    + " after " + g.changes + " changes"
+	);
+    }
+
+} // class Probes
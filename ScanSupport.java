@@ -10,6 +10,7 @@
  * Bug notices in the code indicate unsolved problems
  */
 
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.Scanner;
 
@@ -23,6 +24,8 @@ public class ScanSupport {
     // patterns needed for scanning
     private static final Pattern name
 	= Pattern.compile( "[a-zA-Z0-9_]*" );
+    private static final Pattern glob
+	= Pattern.compile( "[a-zA-Z0-9_*?]*" );
     private static final Pattern intPattern
 	= Pattern.compile( "-?[0-9][0-9]*|");
     private static final Pattern floatPattern
@@ -53,6 +56,24 @@ public class ScanSupport {
 	return s;
     }
 
+    /** Get next name pattern, a name that may use the wildcards * and ?
+     *  @param sc the scanner from which end of line is scanned
+     *  @param message the context part of the missing name error message
+     *  @return the pattern if there was one.
+     *  @throws NotFound if there wasn't one
+     */
+    public static String nextGlob( Scanner sc, Message m ) throws NotFound {
+	sc.skip( whitespace );
+	sc.skip( glob );
+	String s = sc.match().group();
+	if ("".equals( s )) {
+	    Errors.warn( "name expected: " + m.myString() );
+	    sc.nextLine();
+	    throw new NotFound();
+	}
+	return s;
+    }
+
     /** Get next int without skipping to next line (unlike sc.nextInt())
      *  @param sc the scanner from which end of line is scanned
      *  @param message the message to output if there was no int
@@ -64,7 +85,7 @@ public class ScanSupport {
 	sc.skip( intPattern );
 	String s = sc.match().group();
 	if ("".equals( s )) {
-	    Errors.warn( "Float expected: " + m.myString() );
+	    Errors.warn( "Integer expected: " + m.myString() );
 	    sc.nextLine();
 	    throw new NotFound();
 	}
@@ -91,6 +112,18 @@ public class ScanSupport {
 	return Float.parseFloat( s );
     }
 
+    /** Get next float without skipping to next line or complaining
+     *  @param sc the scanner from which the float is scanned
+     *  @return the value if there was one, NaN if there wasn't
+     */
+    public static float tryFloat( Scanner sc ) {
+	sc.skip( whitespace );
+	sc.skip( floatPattern );
+	String s = sc.match().group();
+	if ("".equals( s )) return Float.NaN;
+	return Float.parseFloat( s );
+    }
+
     /** Advance to next line and complain if is junk at the line end
      *  @see Errors
      *  @param sc the scanner from which end of line is scanned
@@ -99,7 +132,17 @@ public class ScanSupport {
      */
     public static void lineEnd( Scanner sc, Message message ) {
 	sc.skip( whitespace );
-	String lineEnd = sc.nextLine();
+	lineEnd( sc.nextLine(), message );
+    }
+
+    /** Complain if there is junk in the rest of a line already read
+     *  @param rest the rest of the line, without its end
+     *  @param message gives a prefix to give context to error messages
+     */
+    public static void lineEnd( String rest, Message message ) {
+	Matcher m = whitespace.matcher( rest );
+	m.lookingAt();
+	String lineEnd = rest.substring( m.end() );
 	if ( (!lineEnd.equals( "" ))
 	&&   (!lineEnd.startsWith( "--" )) ) {
 	    Errors.warn(
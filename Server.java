@@ -0,0 +1,229 @@
+/* Server.java
+ * Long-running simulation server for logic circuits
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Serves simulation jobs from one resident JVM.
+ *  A client connects to the local port, sends a circuit description in the
+ *  same form as an input file, and shuts down its side of the connection.
+ *  The server runs the job on one of a fixed pool of threads, one per
+ *  processor, and streams the output and error messages back, then closes
+ *  the connection; jobs beyond that wait their turn.  The pool is of
+ *  platform threads because virtual threads are not in JDK 17, the release
+ *  the tree is built with.
+ *  Circuits that were read without errors are cached by content, so a
+ *  repeated job skips scanning and goes straight to simulation.
+ *  @see Logic
+ */
+class Server {
+
+    // how many circuits the cache holds
+    private static final int CACHE_SIZE = 256;
+
+    /** A circuit in compiled form, the gates and wires as flat tables
+     *  Compiled circuits are immutable, so jobs can share them.
+     */
+    private static class Netlist {
+	private final String[] gateName;
+	private final String[] gateKind;
+	private final float[] gateDelay;
+
+	private final int[] wireSource;      // index of source gate
+	private final String[] wireSrcPin;
+	private final int[] wireDestination; // index of destination gate
+	private final String[] wireDstPin;
+	private final float[] wireDelay;
+
+	private final String[] probes;
+
+	/** compile the circuit this thread has just read
+	 */
+	Netlist() {
+	    LinkedList <Gate> gates = Logic.gates();
+	    LinkedList <Wire> wires = Logic.wires();
+	    HashMap <Gate,Integer> index = new HashMap <Gate,Integer> ();
+
+	    gateName = new String[gates.size()];
+	    gateKind = new String[gates.size()];
+	    gateDelay = new float[gates.size()];
+	    int i = 0;
+	    for (Gate g: gates) {
+		gateName[i] = g.name;
+		gateKind[i] = g.kind();
+		gateDelay[i] = g.delay;
+		index.put( g, i );
+		i = i + 1;
+	    }
+
+	    wireSource = new int[wires.size()];
+	    wireSrcPin = new String[wires.size()];
+	    wireDestination = new int[wires.size()];
+	    wireDstPin = new String[wires.size()];
+	    wireDelay = new float[wires.size()];
+	    i = 0;
+	    for (Wire w: wires) {
+		wireSource[i] = index.get( w.source() );
+		wireSrcPin[i] = w.srcPinName();
+		wireDestination[i] = index.get( w.destination() );
+		wireDstPin[i] = w.dstPinName();
+		wireDelay[i] = w.delay();
+		i = i + 1;
+	    }
+
+	    probes = Logic.probes().toArray( new String[0] );
+	}
+
+	/** build a fresh copy of this circuit as this thread's circuit
+	 */
+	void build() {
+	    LinkedList <Gate> gates = Logic.gates();
+	    LinkedList <Wire> wires = Logic.wires();
+	    Gate[] g = new Gate[gateName.length];
+	    for (int i = 0; i < g.length; i++) {
+		g[i] = Gate.make( gateName[i], gateKind[i], gateDelay[i] );
+		Logic.define( g[i] );
+	    }
+	    for (int i = 0; i < wireSource.length; i++) {
+		wires.add( new Wire(
+		    g[wireSource[i]], wireSrcPin[i],
+		    g[wireDestination[i]], wireDstPin[i],
+		    wireDelay[i]
+		) );
+	    }
+	    for (String p: probes) Logic.probes().add( p );
+	}
+    }
+
+    // compiled circuits by content hash, least recently used first
+    private static final Map <String,Netlist> cache
+	= new LinkedHashMap <String,Netlist> ( 16, 0.75f, true ) {
+	    protected boolean removeEldestEntry(
+		Map.Entry <String,Netlist> eldest
+	    ) {
+		return size() > CACHE_SIZE;
+	    }
+	};
+
+    /** Accept jobs on a local port, forever
+     *  @param port the port number
+     */
+    public static void serve( int port ) {
+	final ServerSocket listener;
+	try {
+	    listener = new ServerSocket(
+		port, 50, InetAddress.getLoopbackAddress()
+	    );
+	} catch (IOException e) {
+	    Errors.fatal( "Can't listen on port " + port );
+	    return; // never reached
+	}
+	ExecutorService pool = Executors.newFixedThreadPool(
+	    Runtime.getRuntime().availableProcessors()
+	);
+	for (;;) {
+	    try {
+		final Socket s = listener.accept();
+		// each job has a thread, and so its own simulation state,
+		// for as long as it runs
+		pool.execute( ()->job( s ) );
+	    } catch (IOException e) {
+		Errors.warn( "Can't accept a job: " + e.getMessage() );
+	    }
+	}
+    }
+
+    /** Run one job, then forget its state so the thread can run another
+     *  @param socket the connection to the client
+     */
+    private static void job( Socket socket ) {
+	try {
+	    byte[] text = readAll( socket.getInputStream() );
+	    PrintStream out = new PrintStream(
+		new BufferedOutputStream( socket.getOutputStream() )
+	    );
+	    Logic.redirect( out );
+	    Errors.redirect( out );
+	    try {
+		String key = hash( text );
+		Netlist n;
+		synchronized (cache) {
+		    n = cache.get( key );
+		}
+		if (n != null) {
+		    n.build();
+		} else {
+		    Logic.readCircuit(
+			new Scanner( new ByteArrayInputStream( text ) )
+		    );
+		    if (Errors.count() == 0) {
+			n = new Netlist();
+			synchronized (cache) {
+			    cache.put( key, n );
+			}
+		    }
+		}
+		Logic.simulate();
+	    } catch (Errors.Fatal e) {
+		// do nothing, the message already went to the client
+	    }
+	    out.flush();
+	} catch (IOException e) {
+	    // do nothing, the client is gone so there is no one to tell
+	} finally {
+	    try {
+		socket.close();
+	    } catch (IOException e) {
+		// do nothing, the job is over anyway
+	    }
+	    Simulator.reset();
+	    Logic.reset();
+	    Errors.reset();
+	    PRNG.reset();
+	}
+    }
+
+    // read everything the client sends
+    private static byte[] readAll( InputStream in ) throws IOException {
+	ByteArrayOutputStream b = new ByteArrayOutputStream();
+	byte[] buffer = new byte[8192];
+	int n;
+	while ((n = in.read( buffer )) > 0) b.write( buffer, 0, n );
+	return b.toByteArray();
+    }
+
+    // the content hash of a circuit description, in hex
+    private static String hash( byte[] text ) {
+	try {
+	    byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( text );
+	    StringBuilder s = new StringBuilder();
+	    for (byte b: digest) s.append( String.format( "%02x", b ) );
+	    return s.toString();
+	} catch (NoSuchAlgorithmException e) {
+	    Errors.fatal( "No SHA-256: " + e.getMessage() );
+	    return null; // never reached
+	}
+    }
+
+} // class Server
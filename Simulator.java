@@ -9,6 +9,9 @@
  * Bug notices in the code indicate unsolved problems
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.PriorityQueue;
 
 /** Framework for discrete event simulation
@@ -33,24 +36,457 @@ class Simulator {
 	abstract void trigger();    // what to do at that time	
     }
 
-    private static PriorityQueue<Event> eventSet
+    /** Actions are the compact alternative to events.
+     *  An action is registered once, and each event that triggers it is
+     *  just a time, the registration number and one bit of value.
+     *  Typically, an object registers an action as follows:
+     *  <pre>
+     *  action = Simulator.register( (float t, boolean v)->aMethodCall( t, v ) );
+     *  </pre>
+     */
+    public static interface Action {
+	void trigger( float time, boolean v );
+    }
+
+    /** Actions on values are actions that take any logic value, see Value.
+     *  In four-state simulation, one takes two registration numbers, the
+     *  second for X and Z, so an event still carries just one bit of value.
+     *  They are registered with registerValue.
+     */
+    public static interface ValueAction {
+	void trigger( float time, int v );
+    }
+
+    /** Deferred work waits until every event at the current time has been
+     *  triggered, see defer.
+     */
+    public static interface Deferred {
+	void settle( float time );
+    }
+
+    /** Monitors watch the simulation from one time to the next.
+     *  A monitor may look at the pending events, shift them or stop
+     *  the simulation.  It is also told of each event as it is triggered.
+     */
+    public static interface Monitor {
+	void step( float time );
+
+	/** an event is about to be triggered
+	 *  @param action its registration number, or -1 if it is not a
+	 *  registered action
+	 */
+	void triggered( int action );
+    }
+
+    /** Visitors look at pending events, see pending
+     */
+    public static interface Visitor {
+	void visit( float time, int action, boolean v );
+    }
+
+    // an event on the Java heap that triggers a registered action
+    private static final class ActionEvent extends Event {
+	final int number;
+	final Action action;
+	final boolean value;
+
+	ActionEvent( float t, int number, Action action, boolean value ) {
+	    super( t );
+	    this.number = number;
+	    this.action = action;
+	    this.value = value;
+	}
+
+	void trigger() { action.trigger( time, value ); }
+    }
+
+    // the simulation state of one thread; each job runs in its own thread
+    private static final ThreadLocal <Simulator> current
+	= ThreadLocal.withInitial( ()->new Simulator() );
+
+    // all registered actions, indexed by registration number
+    private Action[] actions = new Action[64];
+    private int actionCount = 0;
+
+    private PriorityQueue<Event> eventSet
 	= new PriorityQueue <Event> (
 	    (Event e1, Event e2) -> Float.compare( e1.time, e2.time )
     );
 
+    // when not null, pending events are kept off the Java heap here
+    private EventHeap offHeap = null;
+
+    // events that are objects, held while their codes wait in offHeap
+    private ArrayList <Event> objectEvents = new ArrayList <Event> ();
+    private ArrayList <Integer> freeSlots = new ArrayList <Integer> ();
+
+    // limits on the simulation
+    private float until = Float.POSITIVE_INFINITY;
+    private long budget = Long.MAX_VALUE;
+    private long count = 0;           // events triggered so far
+    private long scheduled = 0;       // events scheduled so far
+    private boolean stopped = false;
+    private Monitor monitor = null;
+    private Inbox inbox = null;
+    private long key;                 // of the event being triggered, off-heap
+
+    // work deferred until all events at settleTime have been triggered
+    private ArrayList <Deferred> deferred = new ArrayList <Deferred> ();
+    private ArrayList <Deferred> settling = new ArrayList <Deferred> ();
+    private float settleTime;
+
+    private Simulator() {}
+
+    /** Get this thread's simulator, to schedule events with.
+     *  A circuit is built by the thread that simulates it, so its gates and
+     *  wires look up their simulator once, when they are constructed, and
+     *  not for every event they schedule.
+     *  @return the simulator
+     */
+    public static Simulator current() {
+	return current.get();
+    }
+
+    /** Register an action so events can trigger it by number.
+     *  @param a the action
+     *  @return its registration number
+     */
+    public static int register( Action a ) {
+	Simulator s = current.get();
+	if (s.actionCount == s.actions.length) {
+	    Action[] bigger = new Action[s.actionCount * 2];
+	    System.arraycopy( s.actions, 0, bigger, 0, s.actionCount );
+	    s.actions = bigger;
+	}
+	s.actions[s.actionCount] = a;
+	s.actionCount = s.actionCount + 1;
+	return s.actionCount - 1;
+    }
+
+    /** Register an action on values so events can trigger it by number.
+     *  @param a the action
+     *  @return its registration number, for use with schedule( t, n, int )
+     */
+    public static int registerValue( ValueAction a ) {
+	int number = register(
+	    (float t, boolean v)->a.trigger( t, v ? Value.ONE : Value.ZERO )
+	);
+	if (Value.fourState) register(
+	    (float t, boolean v)->a.trigger( t, v ? Value.Z : Value.X )
+	);
+	return number;
+    }
+
+    /** Replace a registered action on values, keeping its number.
+     *  @param number the registration number
+     *  @param a the new action
+     */
+    public static void reregisterValue( int number, ValueAction a ) {
+	reregister(
+	    number, (float t, boolean v)->a.trigger( t, Value.of( v ) )
+	);
+	if (Value.fourState) reregister(
+	    number + 1,
+	    (float t, boolean v)->a.trigger( t, v ? Value.Z : Value.X )
+	);
+    }
+
+    /** @return how many actions have been registered
+     */
+    public static int actions() {
+	return current.get().actionCount;
+    }
+
+    /** Forget all registered actions, so a circuit can be built again.
+     *  This must be called before any events are scheduled.
+     */
+    public static void forget() {
+	Simulator s = current.get();
+	s.actions = new Action[64];
+	s.actionCount = 0;
+    }
+
+    /** Replace a registered action, keeping its registration number.
+     *  Events in off-heap memory at the same time are ordered by number,
+     *  so the replacement is triggered in the same order as the original.
+     *  @param number the registration number
+     *  @param a the new action
+     */
+    public static void reregister( int number, Action a ) {
+	current.get().actions[number] = a;
+    }
+
+    /** Keep pending events in off-heap memory from now on.
+     *  This must be called before any events are scheduled.
+     *  Events at the same time are then triggered in registration order.
+     *  @param map the file to map the event heap into, or null for none
+     *  @param memory the most events to hold in memory, spilling the rest
+     *  to disk, or 0 for no limit; see SpillHeap
+     *  @throws IOException if the file cannot be mapped
+     */
+    public static void useOffHeap( File map, int memory ) throws IOException {
+	final EventHeap h;
+	if (memory > 0) {
+	    h = (map == null) ? new SpillHeap( memory )
+			      : new SpillHeap( map, memory );
+	} else {
+	    h = (map == null) ? new EventHeap() : new EventHeap( map );
+	}
+	current.get().offHeap = h;
+    }
+
+    /** Release what useOffHeap took, once the simulation is over
+     */
+    public static void close() {
+	Simulator s = current.get();
+	if (s.offHeap != null) s.offHeap.close();
+	s.offHeap = null;
+    }
+
+    /** Forget this thread's simulation state, so its next job starts afresh
+     */
+    public static void reset() {
+	close();
+	current.remove();
+    }
+
     /** Call schedule to make act happen at time.
      */
-    public static void schedule( Event e ) {
-	eventSet.add( e );
+    public void schedule( Event e ) {
+	scheduled = scheduled + 1;
+	if (offHeap == null) {
+	    eventSet.add( e );
+	} else {
+	    // object events get negative codes naming their slot
+	    final int slot;
+	    if (freeSlots.isEmpty()) {
+		slot = objectEvents.size();
+		objectEvents.add( e );
+	    } else {
+		slot = freeSlots.remove( freeSlots.size() - 1 );
+		objectEvents.set( slot, e );
+	    }
+	    offHeap.add( EventHeap.key( e.time, ~slot ) );
+	}
+    }
+
+    /** Schedule a registered action to happen at time.
+     *  @param time when the action will be triggered
+     *  @param action the registration number of the action
+     *  @param v the value passed to the action
+     */
+    public void schedule( float time, int action, boolean v ) {
+	scheduled = scheduled + 1;
+	if (offHeap == null) {
+	    eventSet.add( new ActionEvent( time, action, actions[action], v ) );
+	} else {
+	    offHeap.add( EventHeap.key( time, (action << 1) | (v ? 1 : 0) ) );
+	}
+    }
+
+    /** Schedule a registered action on values to happen at time.
+     *  @param time when the action will be triggered
+     *  @param action the registration number of the action
+     *  @param v the value passed to the action
+     */
+    public void schedule( float time, int action, int v ) {
+	schedule( time, action + (v >> 1), (v & 1) != 0 );
+    }
+
+    /** Defer work until all events at the current time have been triggered
+     *  Deferred work is done in the order it was deferred, before time
+     *  advances; it may schedule more events at the same time, and the
+     *  work they defer is then done after them, in another round.
+     *  @param time the current time
+     *  @param d the work
+     */
+    public void defer( float time, Deferred d ) {
+	settleTime = time;
+	deferred.add( d );
+    }
+
+    /** @return how many events have been scheduled so far
+     */
+    public static long scheduled() {
+	return current.get().scheduled;
+    }
+
+    /** @return how many events have been triggered so far
+     */
+    public static long triggered() {
+	return current.get().count;
+    }
+
+    /** Limit how far the simulation runs
+     *  @param time no events after this time are triggered
+     *  @param events no more than this many events are triggered
+     */
+    public static void limit( float time, long events ) {
+	Simulator s = current.get();
+	s.until = time;
+	s.budget = events;
+    }
+
+    /** Call the monitor before the first event of each new time
+     *  @param m the monitor
+     */
+    public static void monitor( Monitor m ) {
+	current.get().monitor = m;
+    }
+
+    /** Take changes injected by other threads while the simulation runs
+     *  @param i the inbox they are injected into
+     */
+    public static void inbox( Inbox i ) {
+	current.get().inbox = i;
+    }
+
+    /** Stop the simulation before the next event
+     */
+    public static void stop() {
+	current.get().stopped = true;
+    }
+
+    /** Look at all pending events, in no particular order
+     *  @param v the visitor that is shown each event
+     *  @return false if some event is not a registered action, in which case
+     *  the visitor may not have seen all events
+     */
+    public static boolean pending( Visitor v ) {
+	Simulator s = current.get();
+	if (s.offHeap == null) {
+	    for (Event e: s.eventSet) {
+		if (!(e instanceof ActionEvent)) return false;
+		ActionEvent a = (ActionEvent)e;
+		v.visit( a.time, a.number, a.value );
+	    }
+	} else {
+	    if (s.offHeap.spilled()) return false;
+	    for (int i = 0; i < s.offHeap.size(); i++) {
+		long k = s.offHeap.get( i );
+		int code = EventHeap.code( k );
+		if (code < 0) return false;
+		v.visit( EventHeap.time( k ), code >>> 1, (code & 1) != 0 );
+	    }
+	}
+	return true;
+    }
+
+    /** Move all pending events later
+     *  This is only legal when every pending event is a registered action.
+     *  @param dt how much later
+     */
+    public static void shift( float dt ) {
+	Simulator s = current.get();
+	if (s.offHeap == null) {
+	    Event[] old = s.eventSet.toArray( new Event[0] );
+	    s.eventSet.clear();
+	    for (Event e: old) {
+		ActionEvent a = (ActionEvent)e;
+		s.eventSet.add(
+		    new ActionEvent( a.time + dt, a.number, a.action, a.value )
+		);
+	    }
+	} else {
+	    long[] old = new long[s.offHeap.size()];
+	    for (int i = 0; i < old.length; i++) old[i] = s.offHeap.remove();
+	    for (long k: old) {
+		s.offHeap.add(
+		    EventHeap.key( EventHeap.time( k ) + dt, EventHeap.code( k ) )
+		);
+	    }
+	}
+    }
+
+    /** @return the time of the next pending event, or infinity if none
+     */
+    public static float next() {
+	Simulator s = current.get();
+	return s.isEmpty() ? Float.POSITIVE_INFINITY : s.nextTime();
+    }
+
+    /** @return the key of the event being triggered, when events are kept
+     *  off-heap; see EventHeap
+     */
+    public static long key() {
+	return current.get().key;
     }
 
     /** main loop that runs the simulation
      *  This must be called after all initial events are scheduled.
      */
     public static void run() {
-	while (!eventSet.isEmpty()) {
+	Simulator s = current.get();
+	float now = Float.NEGATIVE_INFINITY;
+	s.stopped = false;
+	while (!s.stopped) {
+	    boolean empty = s.isEmpty();
+	    float time = empty ? Float.POSITIVE_INFINITY : s.nextTime();
+	    if ((time != s.settleTime) && !s.deferred.isEmpty()) {
+		s.settle();
+		continue; // the deferred work may have scheduled events
+	    }
+	    if ((s.inbox != null) && !s.inbox.ready( time, s.until )) {
+		continue; // changes were injected, or may yet be
+	    }
+	    if (empty) break;
+	    if (time > s.until) break;
+	    if (s.count >= s.budget) break;
+	    if ((time != now) && (s.monitor != null)) {
+		now = time;
+		s.monitor.step( now );
+		continue; // the monitor may have changed the pending events
+	    }
+	    now = time;
+	    s.count = s.count + 1;
+	    s.triggerNext();
+	}
+    }
+
+    // do the deferred work, one round of it
+    private void settle() {
+	ArrayList <Deferred> round = deferred;
+	deferred = settling;
+	settling = round;
+	for (Deferred d: round) d.settle( settleTime );
+	round.clear();
+    }
+
+    // are there no pending events?
+    private boolean isEmpty() {
+	return (offHeap == null) ? eventSet.isEmpty() : offHeap.isEmpty();
+    }
+
+    // the time of the next pending event
+    private float nextTime() {
+	return (offHeap == null) ? eventSet.peek().time
+				 : EventHeap.time( offHeap.peek() );
+    }
+
+    // remove the next pending event and trigger it
+    private void triggerNext() {
+	if (offHeap == null) {
 	    Event e = eventSet.remove();
+	    if (monitor != null) monitor.triggered(
+		(e instanceof ActionEvent) ? ((ActionEvent)e).number : -1
+	    );
 	    e.trigger();
+	} else {
+	    long k = offHeap.remove();
+	    key = k;
+	    int code = EventHeap.code( k );
+	    if (monitor != null) {
+		monitor.triggered( (code < 0) ? -1 : code >>> 1 );
+	    }
+	    if (code >= 0) {
+		actions[code >>> 1].trigger(
+		    EventHeap.time( k ), (code & 1) != 0
+		);
+	    } else {
+		Event e = objectEvents.set( ~code, null );
+		freeSlots.add( ~code );
+		e.trigger();
+	    }
 	}
     }
 }
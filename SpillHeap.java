@@ -0,0 +1,272 @@
+/* SpillHeap.java
+ * Priority queue of compact simulation events, bounded in memory
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/** An event heap that holds at most a fixed number of keys in memory.
+ *  The heap holds the keys less than a boundary; the rest are spilled to
+ *  sorted run files on disk, by way of a buffer that is sorted when full;
+ *  the buffer is on the Java heap, so it grows only as keys are spilled,
+ *  and only up to a fixed size.
+ *  When the heap fills, its greater half is spilled and the boundary moves
+ *  down; when the heap empties, the least spilled keys are merged back in
+ *  and the boundary moves up.  Keys come out in exactly the order they
+ *  would from an unbounded heap.  When there are too many runs, the
+ *  shorter half of them are merged into one, so memory for reading runs
+ *  is bounded too, and no key is merged more than a few times over.
+ *  Each run file is deleted as soon as it has been read; any left when
+ *  the program exits are deleted then.
+ *  @see EventHeap
+ *  @see Simulator
+ */
+class SpillHeap extends EventHeap {
+    private static final int RUNS = 16;     // most runs before merging them
+    private static final int READ = 8192;   // bytes buffered per run read
+    private static final int BUFFER = 1 << 20; // most keys buffered for runs
+
+    // run files not yet deleted, by all heaps, to delete at exit; once
+    // exiting, no more are made
+    private static final HashSet <File> live = new HashSet <File> ();
+    private static boolean exiting = false;
+    static {
+	Runtime.getRuntime().addShutdownHook( new Thread( ()->{
+	    synchronized (live) {
+		exiting = true;
+		for (File f: live) f.delete();
+	    }
+	} ) );
+    }
+
+    // a sorted file of spilled keys, being read from its least key up
+    private static class Run {
+	final File file;
+	final DataInputStream in;
+	long remaining;             // keys not yet read
+	long head;                  // the least key not yet taken
+
+	Run( File file, long count ) throws IOException {
+	    this.file = file;
+	    in = new DataInputStream( new BufferedInputStream(
+		new FileInputStream( file ), READ
+	    ) );
+	    remaining = count;
+	    advance();
+	}
+
+	// take the head, return false if that was the last key
+	boolean advance() throws IOException {
+	    if (remaining == 0) {
+		delete();
+		return false;
+	    }
+	    head = in.readLong();
+	    remaining = remaining - 1;
+	    return true;
+	}
+
+	// close and delete the file, whatever is left in it
+	void delete() throws IOException {
+	    in.close();
+	    synchronized (live) {
+		file.delete();
+		live.remove( file );
+	    }
+	}
+    }
+
+    private final int limit;          // most keys in the heap
+    private final int most;           // most keys in the buffer
+    private long[] buffer;            // spilled keys not yet in a run
+    private int buffered = 0;
+    private final ArrayList <Run> runs = new ArrayList <Run> ();
+    private long spilled = 0;         // keys in the runs and the buffer
+
+    // keys in the heap are less than this; spilled keys are not
+    private long boundary = Long.MAX_VALUE;
+
+    /** construct an empty heap in anonymous off-heap memory
+     *  @param memory the most keys to hold in memory, at least 4
+     */
+    public SpillHeap( int memory ) {
+	super();
+	most = Math.min( memory / 4, BUFFER );
+	limit = Math.min( memory - most, MAX );
+	buffer = new long[Math.min( most, 1024 )];
+    }
+
+    /** construct an empty heap in a memory-mapped file
+     *  @param f the file to map; it is created or overwritten
+     *  @param memory the most keys to hold in memory, at least 4
+     *  @throws IOException if the file cannot be mapped
+     */
+    public SpillHeap( File f, int memory ) throws IOException {
+	super( f );
+	most = Math.min( memory / 4, BUFFER );
+	limit = Math.min( memory - most, MAX );
+	buffer = new long[Math.min( most, 1024 )];
+    }
+
+    boolean spilled() {
+	return spilled > 0;
+    }
+
+    void close() {
+	for (Run r: runs) try {
+	    r.delete();
+	} catch (IOException e) {
+	    Errors.warn( "Can't delete spilled events: " + e.getMessage() );
+	}
+	runs.clear();
+	super.close();
+    }
+
+    public boolean isEmpty() {
+	return super.isEmpty() && (spilled == 0);
+    }
+
+    public int size() {
+	return (int)Math.min( super.size() + spilled, Integer.MAX_VALUE );
+    }
+
+    public long peek() {
+	if (super.isEmpty()) refill();
+	return super.peek();
+    }
+
+    public long remove() {
+	if (super.isEmpty()) refill();
+	return super.remove();
+    }
+
+    public void add( long k ) {
+	if ((k < boundary) && (super.size() == limit)) spillHalf();
+	if (k < boundary) {
+	    super.add( k );
+	} else {
+	    if (buffered == buffer.length) buffer = Arrays.copyOf(
+		buffer, Math.min( buffered * 2, most )
+	    );
+	    buffer[buffered] = k;
+	    buffered = buffered + 1;
+	    spilled = spilled + 1;
+	    if (buffered == most) flush();
+	}
+    }
+
+    // spill the greater half of the full heap, straight from the heap to
+    // a new run, and lower the boundary to the least key spilled
+    private void spillHalf() {
+	int half = limit / 2;
+	try {
+	    File f = newRun();
+	    DataOutputStream out = open( f );
+	    super.split( half, (long k)->{
+		boundary = Math.min( boundary, k ); // the first is least
+		out.writeLong( k );
+	    } );
+	    out.close();
+	    spilled = spilled + (limit - half);
+	    added( f, limit - half );
+	} catch (IOException e) {
+	    Errors.fatal( "Can't spill events to disk: " + e.getMessage() );
+	}
+    }
+
+    // sort the buffer into a new run
+    private void flush() {
+	Arrays.sort( buffer, 0, buffered );
+	try {
+	    File f = newRun();
+	    DataOutputStream out = open( f );
+	    for (int i = 0; i < buffered; i++) out.writeLong( buffer[i] );
+	    out.close();
+	    added( f, buffered );
+	} catch (IOException e) {
+	    Errors.fatal( "Can't spill events to disk: " + e.getMessage() );
+	}
+	buffered = 0;
+    }
+
+    // a new run is written, merge the runs if there are many
+    private void added( File f, long count ) throws IOException {
+	runs.add( new Run( f, count ) );
+	if (runs.size() > RUNS) merge();
+    }
+
+    // merge the shorter half of the runs into one
+    private void merge() throws IOException {
+	runs.sort( (Run a, Run b)->Long.compare( a.remaining, b.remaining ) );
+	ArrayList <Run> shorter = new ArrayList <Run> ();
+	while (shorter.size() <= RUNS / 2) shorter.add( runs.remove( 0 ) );
+	File f = newRun();
+	DataOutputStream out = open( f );
+	long count = 0;
+	while (!shorter.isEmpty()) {
+	    out.writeLong( take( shorter ) );
+	    count = count + 1;
+	}
+	out.close();
+	runs.add( new Run( f, count ) );
+    }
+
+    // a new file for a run, to be deleted at exit if not before
+    private static File newRun() throws IOException {
+	synchronized (live) {
+	    if (exiting) throw new IOException( "exiting" );
+	    File f = File.createTempFile( "events", ".run" );
+	    live.add( f );
+	    return f;
+	}
+    }
+
+    private static DataOutputStream open( File f ) throws IOException {
+	return new DataOutputStream( new BufferedOutputStream(
+	    new FileOutputStream( f ), READ
+	) );
+    }
+
+    // remove and return the least key of some runs, which must exist
+    private static long take( ArrayList <Run> from ) throws IOException {
+	int least = 0;
+	for (int i = 1; i < from.size(); i++) {
+	    if (from.get( i ).head < from.get( least ).head) least = i;
+	}
+	Run r = from.get( least );
+	long k = r.head;
+	if (!r.advance()) from.remove( least );
+	return k;
+    }
+
+    // move the least spilled keys into the empty heap and raise the boundary
+    private void refill() {
+	if (spilled == 0) return;
+	if (buffered > 0) flush();
+	try {
+	    int half = Math.max( limit / 2, 1 );
+	    for (int i = 0; (i < half) && !runs.isEmpty(); i++) {
+		super.add( take( runs ) );
+		spilled = spilled - 1;
+	    }
+	} catch (IOException e) {
+	    Errors.fatal( "Can't read spilled events: " + e.getMessage() );
+	}
+	boundary = Long.MAX_VALUE;
+	for (Run r: runs) boundary = Math.min( boundary, r.head );
+    }
+
+} // class SpillHeap
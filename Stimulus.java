@@ -0,0 +1,193 @@
+/* Stimulus.java
+ * Applies a stimulus file to the input gates of a logic circuit
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Scanner;
+
+/** Reads a stimulus file lazily and feeds it to the simulation.
+ *  Each line of a stimulus file is a record of the form
+ *  <pre>
+ *  time name value
+ *  </pre>
+ *  where name is the name of an input gate and value is 0, 1, false or
+ *  true, or in four-state simulation X or Z.  Records must be in time
+ *  order.  Lines starting with -- are comments.  Only the records that
+ *  fall in one window of simulated time are read and scheduled at once,
+ *  so the stimulus file may be arbitrarily long.
+ *  The window decides which events are already pending when each record
+ *  is scheduled, so on the Java heap, where events at the same time are
+ *  triggered in no particular order, changing the window may change the
+ *  order of changes at the same time.  Off-heap, that order is fixed by
+ *  registration number, so the window never changes the output.
+ *  @see InputGate
+ *  @see Simulator
+ */
+class Stimulus {
+    private final Scanner sc;       // the stimulus file
+    private final float window;     // how much simulated time to read ahead
+    private Simulator simulator;    // that runs the stimulus, see start
+
+    // all of the input gates, by name
+    private final HashMap <String,InputGate> inputs
+	= new HashMap <String,InputGate> ();
+
+    // the next record, read from the file but not yet scheduled
+    private boolean pending = false;
+    private float nextTime;
+    private InputGate nextGate;
+    private int nextValue;          // see Value
+
+    // the time of the latest record, to check the order of records
+    private float lastTime = Float.NEGATIVE_INFINITY;
+
+    /** construct a stimulus for the circuit this thread has read
+     *  @param sc the scanner from which the stimulus file is read
+     *  @param window how far ahead of simulated time records are scheduled
+     */
+    public Stimulus( Scanner sc, float window ) {
+	this.sc = sc;
+	this.window = window;
+	for (Gate g: Logic.gates()) {
+	    if (g instanceof InputGate) inputs.put( g.name, (InputGate)g );
+	}
+    }
+
+    /** read the stimulus one record at a time, for tools that don't use
+     *  the simulator; each record can be examined with time, gate and value
+     *  @return true if there was another record
+     */
+    boolean next() {
+	readNext();
+	return pending;
+    }
+
+    float time() { return nextTime; }
+    InputGate gate() { return nextGate; }
+    boolean value() { return nextValue == Value.ONE; }
+
+    /** read the whole stimulus into a running simulation as it arrives,
+     *  for a thread other than the simulation's
+     *  Errors in the records are passed on to the simulation's thread, so
+     *  they are counted there.
+     *  @param p the producer that injects each record
+     */
+    void inject( Inbox.Producer p ) {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	Errors.redirect( new PrintStream( out ) );
+	try {
+	    while (next()) {
+		passOn( out, p );
+		p.inject( nextTime, nextGate, nextValue );
+	    }
+	} catch (Errors.Fatal e) {
+	    // the rest of the stimulus is lost, the error says why
+	}
+	passOn( out, p );
+	p.close();
+    }
+
+    // pass the messages in out on to the producer's simulation
+    private static void passOn( ByteArrayOutputStream out, Inbox.Producer p ) {
+	if (out.size() == 0) return;
+	for (String line: out.toString().split( "\\R" )) {
+	    p.warn( line.startsWith( "Logic: " ) ? line.substring( 7 ) : line );
+	}
+	out.reset();
+    }
+
+    /** schedule the first window of the stimulus
+     *  This must be called before the simulation is run.
+     */
+    public void start() {
+	simulator = Simulator.current();
+	readNext();
+	if (pending) scheduleRefill( nextTime );
+    }
+
+    // arrange for the records after time t to be read at time t
+    private void scheduleRefill( float t ) {
+	simulator.schedule(
+	    new Simulator.Event( t ) {
+		void trigger() { refill( time ); }
+	    }
+	);
+    }
+
+    /** schedule all records that fall in the window starting at time
+     *  @param time the current simulated time
+     */
+    private void refill( float time ) {
+	final float end = time + window;
+	while (pending && (nextTime < end)) {
+	    if (nextGate.local) simulator.schedule(
+		nextTime, nextGate.stimulusAction, nextValue
+	    );
+	    readNext();
+	}
+	if (pending) scheduleRefill( nextTime );
+    }
+
+    /** read the next good record of the stimulus file, if there is one
+     *  sets pending to report success
+     */
+    private void readNext() {
+	pending = false;
+	while (!pending) {
+	    sc.skip( "[ \t\r\n]*" );
+	    if (!sc.hasNext()) return;
+	    if (sc.hasNext( "--.*" )) {
+		sc.nextLine();
+		continue;
+	    }
+	    try {
+		final float t = ScanSupport.nextFloat(
+		    sc, ()->"stimulus ???"
+		);
+		final String name = ScanSupport.nextName(
+		    sc, ()->"stimulus " + t + " ???"
+		);
+		final String v = ScanSupport.nextName(
+		    sc, ()->"stimulus " + t + " " + name + " ???"
+		);
+		final String record = "stimulus " + t + " " + name + " " + v;
+		ScanSupport.lineEnd( sc, ()->record );
+
+		InputGate g = inputs.get( name );
+		if (g == null) {
+		    Errors.warn( "No such input gate: " + record );
+		} else if (t < lastTime) {
+		    Errors.warn( "Out of order: " + record );
+		} else if ("1".equals( v ) || "true".equals( v )) {
+		    pending = true;
+		    nextValue = Value.ONE;
+		} else if ("0".equals( v ) || "false".equals( v )) {
+		    pending = true;
+		    nextValue = Value.ZERO;
+		} else if (Value.fourState && "X".equalsIgnoreCase( v )) {
+		    pending = true;
+		    nextValue = Value.X;
+		} else if (Value.fourState && "Z".equalsIgnoreCase( v )) {
+		    pending = true;
+		    nextValue = Value.Z;
+		} else {
+		    Errors.warn( "Illegal value: " + record );
+		}
+		if (pending) {
+		    lastTime = t;
+		    nextTime = t;
+		    nextGate = g;
+		}
+	    } catch (ScanSupport.NotFound e) {
+		// do nothing, the scanner already reported the error
+	    }
+	}
+    }
+
+} // class Stimulus
@@ -0,0 +1,413 @@
+/* Traces.java
+ * Writes binary traces of a simulation and compares traces
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** Traces are the output changes that a simulation prints, one per line
+ *  of the form "At time gate name kind delay pin  changes to value".
+ *  A binary trace holds the same changes more compactly: a header giving
+ *  the name of each gate by number, then 9 bytes per change, the time,
+ *  the gate number and the value.  Two traces of either form are compared
+ *  by streaming both through memory-mapped windows, so memory use does
+ *  not grow with their length.  The changes of each gate in one trace are
+ *  paired in order with those in the other; a pair matches if the values
+ *  agree and the times differ by at most a tolerance, allowing for the
+ *  random variation in gate delays.  Lines of other forms are ignored.
+ *  @see Gate
+ */
+class Traces {
+    // the first 4 bytes of a binary trace, "LTR1"
+    private static final int MAGIC = 0x4C545231;
+
+    // how many divergences to describe in full
+    private static final int SHOWN = 10;
+
+    // how much of a trace file is mapped at a time
+    private static final int WINDOW = 1 << 26;
+
+    /** when not null, where output changes go in binary, in place of text
+     */
+    static DataOutputStream binary = null;
+
+    /** start a binary trace
+     *  @param f the file to write
+     *  @param gates all gates of the circuit, by number
+     */
+    static void open( File f, Gate[] gates ) {
+	try {
+	    binary = new DataOutputStream( new BufferedOutputStream(
+		new FileOutputStream( f ), 1 << 16
+	    ) );
+	    binary.writeInt( MAGIC );
+	    binary.writeInt( gates.length );
+	    for (Gate g: gates) binary.writeUTF( g.name );
+	} catch (IOException e) {
+	    Errors.fatal( "Can't write the trace file" );
+	}
+    }
+
+    /** record one output change in the binary trace
+     *  @param time the time of the change
+     *  @param gate the number of the gate that changes
+     *  @param v the new value, see Value
+     */
+    static void record( float time, int gate, int v ) {
+	try {
+	    binary.writeFloat( time );
+	    binary.writeInt( gate );
+	    binary.writeByte( v );
+	} catch (IOException e) {
+	    Errors.fatal( "Can't write the trace file" );
+	}
+    }
+
+    /** finish the binary trace, if there is one
+     */
+    static void close() {
+	if (binary == null) return;
+	try {
+	    binary.close();
+	} catch (IOException e) {
+	    Errors.fatal( "Can't write the trace file" );
+	}
+	binary = null;
+    }
+
+    // reads a file through a window mapped into memory
+    private static class Mapped {
+	private final FileChannel channel;
+	private final long size;
+	private long base = 0;         // where in the file the window starts
+	private MappedByteBuffer window;
+
+	Mapped( File f ) throws IOException {
+	    RandomAccessFile file = new RandomAccessFile( f, "r" );
+	    channel = file.getChannel();
+	    size = channel.size();
+	    window = channel.map(
+		FileChannel.MapMode.READ_ONLY, 0, Math.min( size, WINDOW )
+	    );
+	}
+
+	// the next byte, or -1 at the end of the file
+	int get() throws IOException {
+	    if (!window.hasRemaining()) {
+		base = base + window.limit();
+		if (base >= size) return -1;
+		window = channel.map(
+		    FileChannel.MapMode.READ_ONLY,
+		    base, Math.min( size - base, WINDOW )
+		);
+	    }
+	    return window.get() & 0xFF;
+	}
+
+	int getInt() throws IOException {
+	    int i = 0;
+	    for (int b = 0; b < 4; b++) {
+		int c = get();
+		if (c < 0) throw new java.io.EOFException();
+		i = (i << 8) | c;
+	    }
+	    return i;
+	}
+
+	void close() throws IOException {
+	    channel.close();
+	}
+    }
+
+    // one trace, read one change at a time
+    private abstract static class Reader {
+	final String file;
+	final Mapped in;
+	float time;                 // the change just read
+	int net;
+	int value;                  // see Value
+
+	Reader( String file, Mapped in ) {
+	    this.file = file;
+	    this.in = in;
+	}
+
+	// read the next change, return false if there is none
+	abstract boolean next() throws IOException;
+    }
+
+    // all of the gate names in either trace, by net number
+    private final HashMap <String,Integer> numbers
+	= new HashMap <String,Integer> ();
+    private final ArrayList <String> names = new ArrayList <String> ();
+
+    private int net( String name ) {
+	Integer n = numbers.get( name );
+	if (n == null) {
+	    n = names.size();
+	    numbers.put( name, n );
+	    names.add( name );
+	}
+	return n;
+    }
+
+    // reads lines of text, skipping those that are not output changes
+    private class TextReader extends Reader {
+	private byte[] line = new byte[256];
+	private int length;
+
+	TextReader( String file, Mapped in ) {
+	    super( file, in );
+	}
+
+	boolean next() throws IOException {
+	    for (;;) {
+		length = 0;
+		int c = in.get();
+		if (c < 0) return false;
+		while ((c >= 0) && (c != '\n')) {
+		    if (length == line.length) {
+			line = java.util.Arrays.copyOf( line, length * 2 );
+		    }
+		    line[length] = (byte)c;
+		    length = length + 1;
+		    c = in.get();
+		}
+		if (parse()) return true;
+	    }
+	}
+
+	// parse "At time gate name ... changes to value", false if not that
+	private boolean parse() {
+	    if (!starts( 0, "At " )) return false;
+	    int t = 3;
+	    int tEnd = space( t );
+	    if ((tEnd < 0) || !starts( tEnd, " gate " )) return false;
+	    int n = tEnd + 6;
+	    int nEnd = space( n );
+	    if (nEnd < 0) return false;
+	    if (ends( " changes to true" )) {
+		value = Value.ONE;
+	    } else if (ends( " changes to false" )) {
+		value = Value.ZERO;
+	    } else if (ends( " changes to X" )) {
+		value = Value.X;
+	    } else if (ends( " changes to Z" )) {
+		value = Value.Z;
+	    } else {
+		return false;
+	    }
+	    try {
+		time = Float.parseFloat( text( t, tEnd ) );
+	    } catch (NumberFormatException e) {
+		return false;
+	    }
+	    net = net( text( n, nEnd ) );
+	    return true;
+	}
+
+	private int space( int from ) {
+	    for (int i = from; i < length; i++) if (line[i] == ' ') return i;
+	    return -1;
+	}
+
+	private boolean starts( int at, String s ) {
+	    if (at + s.length() > length) return false;
+	    for (int i = 0; i < s.length(); i++) {
+		if (line[at + i] != s.charAt( i )) return false;
+	    }
+	    return true;
+	}
+
+	private boolean ends( String s ) {
+	    return starts( length - s.length(), s );
+	}
+
+	private String text( int from, int to ) {
+	    return new String( line, from, to - from, StandardCharsets.UTF_8 );
+	}
+    }
+
+    // reads fixed-size records after the table of gate names
+    private class BinaryReader extends Reader {
+	private final int[] nets;   // net numbers, by gate number
+
+	BinaryReader( String file, Mapped in ) throws IOException {
+	    super( file, in );
+	    in.getInt(); // the magic number, already checked
+	    nets = new int[in.getInt()];
+	    for (int i = 0; i < nets.length; i++) {
+		byte[] b = new byte[(in.get() << 8) | in.get()];
+		for (int j = 0; j < b.length; j++) b[j] = (byte)in.get();
+		nets[i] = net( new String( b, StandardCharsets.UTF_8 ) );
+	    }
+	}
+
+	boolean next() throws IOException {
+	    int c = in.get();
+	    if (c < 0) return false;
+	    int t = c;
+	    for (int b = 1; b < 4; b++) t = (t << 8) | in.get();
+	    time = Float.intBitsToFloat( t );
+	    int g = in.getInt();
+	    if ((g < 0) || (g >= nets.length)) {
+		Errors.fatal( "Bad gate number in trace file: " + file );
+	    }
+	    net = nets[g];
+	    value = in.get();
+	    if (value < 0) throw new java.io.EOFException();
+	    return true;
+	}
+    }
+
+    // a change in one trace not yet paired with a change in the other
+    private static class Pending {
+	final int side;             // 0 for the first trace, 1 for the second
+	final float time;
+	final int net;
+	final int value;
+	boolean paired = false;
+
+	Pending( int side, float time, int net, int value ) {
+	    this.side = side;
+	    this.time = time;
+	    this.net = net;
+	    this.value = value;
+	}
+    }
+
+    private final float tolerance;
+
+    // unpaired changes, all in the order read and for each net
+    private final ArrayDeque <Pending> pending = new ArrayDeque <Pending> ();
+    private final ArrayList <ArrayDeque <Pending>> waiting
+	= new ArrayList <ArrayDeque <Pending>> ();
+
+    private final ArrayList <Integer> mismatches = new ArrayList <Integer> ();
+    private long matched = 0;
+    private long divergences = 0;
+
+    private Traces( float tolerance ) {
+	this.tolerance = tolerance;
+    }
+
+    private Reader open( String file ) {
+	try {
+	    Mapped in = new Mapped( new File( file ) );
+	    if (in.size >= 4) {
+		int magic = in.getInt();
+		in.close();
+		in = new Mapped( new File( file ) );
+		if (magic == MAGIC) return new BinaryReader( file, in );
+	    }
+	    return new TextReader( file, in );
+	} catch (IOException e) {
+	    Errors.fatal( "Can't read the trace file: " + file );
+	    return null; // never reached
+	}
+    }
+
+    /** compare two traces and print how they differ
+     *  @param first the name of one trace file, text or binary
+     *  @param second the name of the other
+     *  @param tolerance how much the times of matching changes may differ
+     *  @return true if the traces match
+     */
+    static boolean compare( String first, String second, float tolerance ) {
+	Traces c = new Traces( tolerance );
+	Reader[] r = { c.open( first ), c.open( second ) };
+	try {
+	    boolean[] more = { r[0].next(), r[1].next() };
+	    while (more[0] || more[1]) {
+		// take the earlier change, from the first trace on a tie
+		int s = (!more[1] || (more[0] && (r[0].time <= r[1].time)))
+		    ? 0 : 1;
+		c.change( s, r[s].time, r[s].net, r[s].value );
+		more[s] = r[s].next();
+	    }
+	    r[0].in.close();
+	    r[1].in.close();
+	} catch (IOException e) {
+	    Errors.fatal( "Can't read the trace files" );
+	}
+	c.expire( Float.POSITIVE_INFINITY );
+	c.report( first, second );
+	return c.divergences == 0;
+    }
+
+    // take one change from one side, pairing it if possible
+    private void change( int side, float time, int net, int value ) {
+	expire( time - tolerance );
+	while (waiting.size() <= net) waiting.add( new ArrayDeque <Pending> () );
+	ArrayDeque <Pending> w = waiting.get( net );
+	Pending p = w.peekFirst();
+	if ((p != null) && (p.side != side)) {
+	    w.removeFirst();
+	    p.paired = true;
+	    if (p.value == value) {
+		matched = matched + 1;
+	    } else {
+		diverge( p, "At " + time + " changes to " + Value.name( value ) );
+	    }
+	} else {
+	    p = new Pending( side, time, net, value );
+	    w.addLast( p );
+	    pending.addLast( p );
+	}
+    }
+
+    // give up on pairing changes from before time
+    private void expire( float time ) {
+	for (;;) {
+	    Pending p = pending.peekFirst();
+	    if (p == null) return;
+	    if (!p.paired) {
+		if (!(p.time < time)) return;
+		waiting.get( p.net ).removeFirst();
+		diverge( p, "no matching change" );
+	    }
+	    pending.removeFirst();
+	}
+    }
+
+    // count and perhaps describe a change that doesn't match
+    private void diverge( Pending p, String other ) {
+	divergences = divergences + 1;
+	while (mismatches.size() <= p.net) mismatches.add( 0 );
+	mismatches.set( p.net, mismatches.get( p.net ) + 1 );
+	if (divergences > SHOWN) return;
+	Logic.out().println(
+	    "Trace " + (p.side + 1) + " at " + p.time + " gate "
+	    + names.get( p.net ) + " changes to " + Value.name( p.value )
+	    + ", trace " + (2 - p.side) + ": " + other
+	);
+    }
+
+    private void report( String first, String second ) {
+	for (int n = 0; n < mismatches.size(); n++) {
+	    if (mismatches.get( n ) > 0) Logic.out().println(
+		"Gate " + names.get( n ) + ": " + mismatches.get( n )
+		+ " mismatches"
+	    );
+	}
+	Logic.out().println(
+	    "Traces " + first + " and " + second + ": "
+	    + matched + " changes match, " + divergences + " do not"
+	);
+    }
+
+} // class Traces
@@ -0,0 +1,80 @@
+/* Value.java
+ * Logic values and the operations on them
+ * author Yimeng Fan, Douglas W. Jones
+ * version 2017-12-01
+ *
+ * Bug notices in the code indicate unsolved problems
+ */
+
+/** Logic values are 2-bit codes, ZERO and ONE, and in four-state
+ *  simulation X, unknown, and Z, undriven.  The low bit of a code is the
+ *  value if it is known, and the high bit is set if it is not.  Each gate
+ *  and wire holds its own value.  Gates treat a Z input as X.
+ *  In two-state simulation everything starts at ZERO and only ZERO and ONE
+ *  ever occur, so the simulation is exactly as if values were booleans.
+ *  In four-state simulation everything starts at X, so nets that are never
+ *  driven to a known value can be seen.
+ *  @see Gate
+ *  @see Wire
+ */
+class Value {
+    /** the codes of the values
+     */
+    static final int ZERO = 0;
+    static final int ONE = 1;
+    static final int X = 2;
+    static final int Z = 3;
+
+    /** when true, simulate with X and Z as well as ZERO and ONE
+     */
+    static boolean fourState = false;
+
+    /** get the value everything has before the simulation changes it
+     *  @return ZERO, or X in four-state simulation
+     */
+    static int initial() {
+	return fourState ? X : ZERO;
+    }
+
+    /** get the code of a boolean
+     *  @param b the boolean
+     *  @return ONE or ZERO
+     */
+    static int of( boolean b ) {
+	return b ? ONE : ZERO;
+    }
+
+    /** get the text of a value, as used in traces
+     *  @param v the value
+     *  @return true, false, X or Z
+     */
+    static String name( int v ) {
+	switch (v) {
+	    case ZERO: return "false";
+	    case ONE: return "true";
+	    case X: return "X";
+	    default: return "Z";
+	}
+    }
+
+    /** not of a value; X for X or Z
+     *  @param a the value
+     *  @return the result
+     */
+    static int not( int a ) {
+	return ((a & 2) != 0) ? X : (a ^ 1);
+    }
+
+    /** the value of a net driven by two sources; Z gives way to the other
+     *  source, and sources that disagree give X
+     *  @param a the value of one source
+     *  @param b the value of the other
+     *  @return the result
+     */
+    static int resolve( int a, int b ) {
+	if (a == Z) return b;
+	if ((b == Z) || (a == b)) return a;
+	return X;
+    }
+
+} // class Value
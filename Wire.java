@@ -8,6 +8,7 @@
  * Bug notices in the code indicate unsolved problems
  */
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Scanner;
 
@@ -24,16 +25,107 @@ public class Wire {
     private final int srcPin;         // what pin number of source
     private final Gate destination;   // where this wire goes, never null
     private final int dstPin;         // what pin number of destination
+    private final int action;         // simulates the output change
+    private final Simulator simulator = Simulator.current(); // of this thread
+
+    // in four-state simulation, several wires may drive one input pin
+    private Wire sharing = this;      // the next wire into the same pin
+    private int value = Value.initial(); // the latest value this wire gave it
     // note, wires don't understand pin numbers, only gates do.
     // note, by convention -1 is an illegal pin number.
 
+    /** The wires out of one output pin, in the order they were connected.
+     *  They are held in an array, so a change is sent along them without
+     *  following a link for each, see Layout.
+     */
+    static final class Fanout {
+	private Wire[] wires = new Wire[2];
+	private int size = 0;
+
+	/** connect a wire
+	 *  @param w the wire
+	 */
+	void add( Wire w ) {
+	    if (size == wires.length) wires = Arrays.copyOf( wires, size * 2 );
+	    wires[size] = w;
+	    size = size + 1;
+	}
+
+	/** disconnect a wire
+	 *  @param w the wire
+	 *  @return false if it was not connected
+	 */
+	boolean remove( Wire w ) {
+	    for (int i = 0; i < size; i++) {
+		if (wires[i] == w) {
+		    size = size - 1;
+		    System.arraycopy( wires, i + 1, wires, i, size - i );
+		    wires[size] = null;
+		    return true;
+		}
+	    }
+	    return false;
+	}
+
+	/** send a change along every wire
+	 *  @param time the time of the change
+	 *  @param v the new value, see Value
+	 */
+	void send( float time, int v ) {
+	    for (int i = 0; i < size; i++) wires[i].inputChangeEvent( time, v );
+	}
+    }
+
+    /** The fields of a wire description, scanned but not yet checked
+     */
+    static final class Text {
+	final String sourceName;
+	final String srcPinName;
+	final String dstName;
+	final String dstPinName;
+	final float delay;            // NaN if it was missing
+	final String rest;            // the rest of the line
+
+	Text( String sourceName, String srcPinName,
+	      String dstName, String dstPinName, float delay, String rest ) {
+	    this.sourceName = sourceName;
+	    this.srcPinName = srcPinName;
+	    this.dstName = dstName;
+	    this.dstPinName = dstPinName;
+	    this.delay = delay;
+	    this.rest = rest;
+	}
+
+	// the description up to the delay, to give context to error messages
+	private String context() {
+	    return "wire " + sourceName + " " + srcPinName + " "
+		+ dstName + " " + dstPinName;
+	}
+    }
+
     /** construct a new wire by scanning its description from the source file
      *  @param sc the scanner from which the wire description is scanned
      *  @see ScanSupport for the tools used to access the scanner
      *  @throws ConstructorFailure when a new wire cannot be constructed
      */
     public Wire( Scanner sc ) throws ConstructorFailure {
-	// temporaries used during construction
+	this( scan( sc ) );
+    }
+
+    // construct a new wire between gates found by name
+    private Wire( Text t ) throws ConstructorFailure {
+	this( t, Logic.findGate( t.sourceName ), Logic.findGate( t.dstName ) );
+    }
+
+    /** scan a wire description, up to and including the end of its line
+     *  @param sc the scanner from which the wire description is scanned
+     *  @return the fields of the description
+     *  @throws ConstructorFailure if a name is missing
+     *  Only missing names are reported; a missing delay is reported later,
+     *  by the constructor, after the gates and pins are checked.
+     */
+    static Text scan( Scanner sc ) throws ConstructorFailure {
+	// temporaries used during scanning
 	final String sourceName;
 	final String srcPinName;
 	final String dstName;
@@ -57,45 +149,107 @@ public class Wire {
 	    throw new ConstructorFailure();
 	}
 
-	source = Logic.findGate( sourceName );
-	destination = Logic.findGate( dstName );
+	// pick off the numeric field, if there is one
+	float delay = ScanSupport.tryFloat( sc );
+	return new Text(
+	    sourceName, srcPinName, dstName, dstPinName, delay, sc.nextLine()
+	);
+    }
+
+    /** construct a new wire from a scanned description
+     *  @param text the fields of the description
+     *  @param source the gate named as the source, null if there is none
+     *  @param destination the gate named as the destination, null if none
+     *  @throws ConstructorFailure when a new wire cannot be constructed
+     */
+    Wire( Text text, Gate source, Gate destination ) throws ConstructorFailure {
+	this.source = source;
+	this.destination = destination;
 	if (source == null) {
-	    Errors.warn( "No such source gate: wire "
-			+ sourceName + " " + srcPinName + " "
-			+ dstName + " " + dstPinName
-	    );
-	    sc.nextLine();
+	    Errors.warn( "No such source gate: " + text.context() );
 	    throw new ConstructorFailure();
 	}
 	if (destination == null) {
-	    Errors.warn( "No such destination gate: wire "
-			+ sourceName + " " + srcPinName + " "
-			+ dstName + " " + dstPinName
-	    );
-	    sc.nextLine();
+	    Errors.warn( "No such destination gate: " + text.context() );
 	    throw new ConstructorFailure();
 	}
 
 	// take care of source and destination pins
 	// Bug:  This is a start, but in the long run, it might not be right
-	srcPin = source.registerOutput( this, srcPinName );
-	dstPin = destination.registerInput( this, dstPinName );
+	srcPin = source.registerOutput( this, text.srcPinName );
+	dstPin = destination.registerInput( this, text.dstPinName );
 
-	// pick off the numeric field of the source line
-	try {
-	    delay = ScanSupport.nextFloat(
-		sc, ()->"wire "
-		    + sourceName + " " + srcPinName + " "
-		    + dstName + " " + dstPinName + " ???"
+	// check the numeric field of the source line
+	if (Float.isNaN( text.delay )) try {
+	    // it is missing, so complain just as scanning for it would
+	    ScanSupport.nextFloat(
+		new Scanner( text.rest + "\n" ), ()->text.context() + " ???"
 	    );
 	} catch (ScanSupport.NotFound e) {
 	    throw new ConstructorFailure();
 	}
+	delay = text.delay;
 	if (delay < 0.0F) Errors.warn( "Negative delay: " + this.toString() );
-	
-	ScanSupport.lineEnd( sc, ()->this.toString() );
+
+	ScanSupport.lineEnd( text.rest, ()->this.toString() );
+
+	action = Simulator.registerValue(
+	    (float t, int v)->outputChangeEvent( t, v )
+	);
+    }
+
+    /** construct a new wire from fields that have already been scanned
+     *  @param source the gate this wire comes from
+     *  @param srcPinName the name of the source pin
+     *  @param destination the gate this wire goes to
+     *  @param dstPinName the name of the destination pin
+     *  @param delay the delay of this wire
+     */
+    Wire( Gate source, String srcPinName,
+	  Gate destination, String dstPinName, float delay ) {
+	this.source = source;
+	this.destination = destination;
+	srcPin = source.registerOutput( this, srcPinName );
+	dstPin = destination.registerInput( this, dstPinName );
+	this.delay = delay;
+	action = Simulator.registerValue(
+	    (float t, int v)->outputChangeEvent( t, v )
+	);
     }
 
+    /** construct a wire that takes the place of another, from a new source
+     *  @param source the gate this wire comes from
+     *  @param srcPinName the name of the source pin
+     *  @param old the wire replaced, whose destination pin this wire takes
+     *  @param delay the delay of this wire
+     *  The destination pin is already registered, so it is not registered
+     *  again, and the old wire's action becomes this wire's; the caller must
+     *  disconnect the old wire from its source.
+     */
+    Wire( Gate source, String srcPinName, Wire old, float delay ) {
+	this.source = source;
+	this.destination = old.destination;
+	srcPin = source.registerOutput( this, srcPinName );
+	dstPin = old.dstPin;
+	this.delay = delay;
+	// events of this wire keep their place among others at the same time
+	action = old.action;
+	Simulator.reregisterValue(
+	    action, (float t, int v)->outputChangeEvent( t, v )
+	);
+    }
+
+    // access to the fields, for tools that work on the whole circuit
+    Gate source() { return source; }
+    Gate destination() { return destination; }
+    String srcPinName() { return source.outPinName( srcPin ); }
+    String dstPinName() { return destination.inPinName( dstPin ); }
+    int srcPin() { return srcPin; }
+    int dstPin() { return dstPin; }
+    float delay() { return delay; }
+    int action() { return action; }
+    int value() { return value; }
+
     /** get textual description of a wire in a form like that used for input
      * @return the textual form
      */
@@ -108,20 +262,32 @@ public class Wire {
 		+ delay;
     }
 
+    /** join another wire to the input pin of this one
+     *  @param w the other wire
+     *  The pin then has the value of all of its wires together, see
+     *  Value.resolve; this is only allowed in four-state simulation.
+     */
+    void share( Wire w ) {
+	w.sharing = sharing;
+	sharing = w;
+    }
+
     // Simulation methods
 
     /** Simulate an input change on this wire
      *  @param time tells when this wire's input changes
-     *  @param v gives the new value on this wire
+     *  @param v gives the new value on this wire, see Value
      *  schedules an output change event after the wire's delay.
      *  @see outputChangeEvent
      */
-    public void inputChangeEvent( float t, boolean v ) {
-        Simulator.schedule(
-	    new Simulator.Event ( t + delay ) {
-		void trigger() { outputChangeEvent( time, v ); }
-	    }
-        );
+    public void inputChangeEvent( float t, int v ) {
+	if (destination.local) {
+	    simulator.schedule( t + delay, action, v );
+	} else { // another process simulates the destination
+	    Distributed.send(
+		destination, t + delay, action + (v >> 1), (v & 1) != 0
+	    );
+	}
     }
 
     /** Simulate an output change on this wire
@@ -130,7 +296,11 @@ public class Wire {
      *  Passes the new value to the input of the gate to which this wire goes.
      *  @see Gate.inputChangeEvent
      */
-    private void outputChangeEvent( float time, boolean v ) {
+    private void outputChangeEvent( float time, int v ) {
+	value = v;
+	for (Wire w = sharing; w != this; w = w.sharing) {
+	    v = Value.resolve( v, w.value );
+	}
 	destination.inputChangeEvent( time, dstPin, v );
     }
 